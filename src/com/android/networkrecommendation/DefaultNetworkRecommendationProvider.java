@@ -27,19 +27,42 @@ import android.net.ScoredNetwork;
 import android.net.WifiKey;
 import android.net.wifi.ScanResult;
 import android.net.wifi.WifiConfiguration;
-import android.os.Bundle;
+import android.os.SystemClock;
+import android.support.annotation.Nullable;
 import android.support.annotation.VisibleForTesting;
-import android.text.TextUtils;
 import android.util.ArrayMap;
 
+import com.android.networkrecommendation.config.G;
+import com.android.networkrecommendation.scoring.ScoringPipeline;
+import com.android.networkrecommendation.storage.FrequencySketch;
+import com.android.networkrecommendation.storage.ScoreEntry;
+import com.android.networkrecommendation.storage.ScoreFile;
+import com.android.networkrecommendation.storage.ScoreIndex;
 import com.android.networkrecommendation.util.Blog;
+import com.android.networkrecommendation.util.BssidUtil;
+import com.android.networkrecommendation.util.LatencyHistogram;
+import com.android.networkrecommendation.util.PriorityLaneExecutor;
+import com.android.networkrecommendation.util.ScanResultUtil;
 import com.android.networkrecommendation.util.SsidUtil;
+import com.android.networkrecommendation.util.TopKSelector;
 
+import java.io.File;
 import java.io.FileDescriptor;
+import java.io.IOException;
 import java.io.PrintWriter;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.List;
+import java.util.Random;
 import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
 
 import javax.annotation.concurrent.GuardedBy;
 
@@ -83,6 +106,12 @@ import javax.annotation.concurrent.GuardedBy;
  * $ adb shell dumpsys activity service NetworkRecommendationService addScore \
  * '\"AnySsid\",00:00:00:00:00:00\|
  * 10,-128,-128,-128,-128,-128,-128,-128,-128,29,29,29,29,29,-128\|0\|0'
+ *
+ * <p>Print selected stored scores, as described in {@link ScoreDumpOptions}:
+ * $ adb shell dumpsys activity service NetworkRecommendationService scores ssid=Cafe limit=20
+ *
+ * <p>Import a file of scores, either a score file or CSV as described in {@link ScoreImporter}:
+ * $ adb shell dumpsys activity service NetworkRecommendationService importScores $PATH
  */
 @VisibleForTesting
 public class DefaultNetworkRecommendationProvider
@@ -91,6 +120,12 @@ public class DefaultNetworkRecommendationProvider
 
     private static final String WILDCARD_MAC = "00:00:00:00:00:00";
 
+    /** Asynchronous ranking stops this long before the deadline, to deliver its result. */
+    private static final long DEADLINE_MARGIN_NANOS = TimeUnit.MILLISECONDS.toNanos(5);
+
+    /** Number of scan results ranked between deadline checks. */
+    private static final int DEADLINE_CHECK_INTERVAL = 16;
+
     /**
      * The lowest RSSI value at which a fixed score should apply.
      * Only used for development / testing purpose.
@@ -122,120 +157,455 @@ public class DefaultNetworkRecommendationProvider
                     new byte[] {0, 30, 30, 30, 30, 30, 30, 30, 30, 30, 30},
                     0 /* defaultActiveNetworkBoost */);
 
-    private final NetworkScoreManager mScoreManager;
+    private final PriorityLaneExecutor mLanes;
+    private final ScorePublisher mScorePublisher;
     private final ScoreStorage mStorage;
+    private final RecommendationCache mRecommendationCache = new RecommendationCache();
+
+    // Statistics are updated on every request from any thread, so they are kept without locks.
+    private final LongAdder mRecommendationCounter = new LongAdder();
+    private final AtomicReference<WifiConfiguration> mLastRecommended = new AtomicReference<>();
+    private final LongAdder mScoreCounter = new LongAdder();
+    private final LongAdder mPreemptedScoreRequests = new LongAdder();
+    private final DiscardCounters mDiscardCounters = new DiscardCounters();
 
-    private final Object mStatsLock = new Object();
-    @GuardedBy("mStatsLock")
-    private int mRecommendationCounter = 0;
-    @GuardedBy("mStatsLock")
-    private WifiConfiguration mLastRecommended = null;
-    @GuardedBy("mStatsLock")
-    private int mScoreCounter = 0;
+    private final LatencyHistogram mConnectLatency = new LatencyHistogram("Connect");
+    private final LatencyHistogram mDoNotConnectLatency = new LatencyHistogram("Do not connect");
+    private final LatencyHistogram mDefaultConfigLatency = new LatencyHistogram("Default config");
+    private final LatencyHistogram mRecommendationCallbackLatency =
+            new LatencyHistogram("onRequestRecommendation");
+    private final LatencyHistogram mScoreRequestLatency = new LatencyHistogram("onRequestScores");
 
+    /** Deadline of asynchronous requests; zero or less ranks requests inline. */
+    private final long mRecommendationDeadlineMillis;
+    /** Asynchronous requests are ranked on this executor. */
+    private final Executor mRankingExecutor;
+    /** Bumped by each asynchronous request, making older ones stale. */
+    private final AtomicLong mRequestGeneration = new AtomicLong();
+    private final LongAdder mDeadlineMisses = new LongAdder();
+    private final LongAdder mPartialResults = new LongAdder();
+    private final LongAdder mSupersededRequests = new LongAdder();
 
     public DefaultNetworkRecommendationProvider(Context context, Executor executor,
             NetworkScoreManager scoreManager, ScoreStorage storage) {
-        super(context, executor);
-        mScoreManager = scoreManager;
+        this(context, new PriorityLaneExecutor(executor),
+                new ScorePublisher(scoreManager, Runnable::run), storage);
+    }
+
+    /**
+     * @param lanes runs provider callbacks, recommendation requests ahead of score requests.
+     * @param scorePublisher coalesces the scores pushed to {@link NetworkScoreManager}.
+     */
+    DefaultNetworkRecommendationProvider(Context context, PriorityLaneExecutor lanes,
+            ScorePublisher scorePublisher, ScoreStorage storage) {
+        // Callbacks only queue work in a lane, so they can run on the calling binder thread.
+        super(context, Runnable::run);
+        mLanes = lanes;
+        mScorePublisher = scorePublisher;
         mStorage = storage;
+        mRecommendationDeadlineMillis = G.Netrec.recommendationDeadlineMillis.get();
+        mRankingExecutor = ForkJoinPool.commonPool();
     }
 
     /**
      * Recommend the wireless network with the highest RSSI and run
      * {@link ResultCallback#onResult(RecommendationResult)}.
+     *
+     * <p>If {@link G.Netrec#recommendationDeadlineMillis} is set, the request is ranked
+     * asynchronously and the callback run by the deadline with the best candidate found so far.
+     * A newer request cuts an older one short in the same way.
      */
     @Override
     public void onRequestRecommendation(RecommendationRequest request,
             ResultCallback callback) {
-        callback.onResult(requestRecommendation(request));
+        final long start = SystemClock.elapsedRealtimeNanos();
+        if (mRecommendationDeadlineMillis <= 0) {
+            mLanes.execute(PriorityLaneExecutor.LANE_URGENT, "requestRecommendation", () -> {
+                callback.onResult(requestRecommendation(request, null /* deadline */));
+                mRecommendationCallbackLatency.record(SystemClock.elapsedRealtimeNanos() - start);
+            });
+            return;
+        }
+        final long deadlineNanos = start + TimeUnit.MILLISECONDS.toNanos(
+                mRecommendationDeadlineMillis);
+        // Leave time to build the result and deliver it.
+        final RequestDeadline deadline = new RequestDeadline(
+                deadlineNanos - DEADLINE_MARGIN_NANOS, mRequestGeneration);
+        mRankingExecutor.execute(() -> {
+            RecommendationResult recommendationResult = requestRecommendation(request, deadline);
+            switch (deadline.getStopReason()) {
+                case RequestDeadline.EXPIRED:
+                    mPartialResults.increment();
+                    break;
+                case RequestDeadline.SUPERSEDED:
+                    mSupersededRequests.increment();
+                    break;
+                default:
+                    break;
+            }
+            callback.onResult(recommendationResult);
+            final long end = SystemClock.elapsedRealtimeNanos();
+            if (end > deadlineNanos) {
+                mDeadlineMisses.increment();
+            }
+            mRecommendationCallbackLatency.record(end - start);
+        });
     }
 
     @Override
     /** Recommend the wireless network with the highest RSSI. */
     public RecommendationResult requestRecommendation(RecommendationRequest request) {
-        ScanResult recommendedScanResult = null;
-        int recommendedScore = Integer.MIN_VALUE;
+        return requestRecommendation(request, null /* deadline */);
+    }
 
-        ScanResult[] results = request.getScanResults();
-        if (results != null) {
-            for (int i = 0; i < results.length; i++) {
-                final ScanResult scanResult = results[i];
-                Blog.v(TAG, "Scan: " + scanResult + " " + i);
-
-                // We only want to recommend open networks. This check is taken from
-                // places like WifiNotificationController and will be extracted to ScanResult in
-                // a future CL.
-                if (!"[ESS]".equals(scanResult.capabilities)) {
-                    Blog.v(TAG, "Discarding closed network: " + scanResult);
-                    continue;
-                }
+    private RecommendationResult requestRecommendation(
+            RecommendationRequest request, @Nullable RequestDeadline deadline) {
+        final long start = SystemClock.elapsedRealtimeNanos();
+        RecommendationResult recommendationResult =
+                recommend(request, mStorage.snapshot(), deadline);
+        recordRecommendations(recommendationResult.getWifiConfiguration(), 1);
+        final WifiConfiguration config = recommendationResult.getWifiConfiguration();
+        final LatencyHistogram latency = config == null ? mDoNotConnectLatency
+                : config == request.getDefaultWifiConfig() ? mDefaultConfigLatency
+                : mConnectLatency;
+        latency.record(SystemClock.elapsedRealtimeNanos() - start);
+        return recommendationResult;
+    }
 
-                final NetworkKey networkKey = new NetworkKey(
-                        new WifiKey(SsidUtil.quoteSsid(scanResult.SSID),
-                                scanResult.BSSID));
-                Blog.v(TAG, "Evaluating network: " + networkKey);
+    /**
+     * Recommend a network for each request. All requests are resolved against the same scores,
+     * so the results are consistent with each other even while scores are being updated.
+     */
+    @Override
+    public RecommendationResult[] requestRecommendations(RecommendationRequest[] requests) {
+        final ScoreStorage.Snapshot snapshot = mStorage.snapshot();
+        RecommendationResult[] recommendationResults = new RecommendationResult[requests.length];
+        for (int i = 0; i < requests.length; i++) {
+            recommendationResults[i] = recommend(requests[i], snapshot, null /* deadline */);
+        }
+        if (requests.length > 0) {
+            recordRecommendations(
+                    recommendationResults[requests.length - 1].getWifiConfiguration(),
+                    requests.length);
+        }
+        return recommendationResults;
+    }
 
-                // We will only score networks we know about.
-                final ScoredNetwork network = mStorage.get(networkKey);
-                if (network == null) {
-                    Blog.v(TAG, "Discarding unscored network: " + scanResult);
-                    continue;
-                }
+    /**
+     * Rank the scored networks of a request in a single pass over its scan results, keeping the
+     * best BSSID of each SSID.
+     *
+     * @return up to {@code maxResults} configurations of distinct SSIDs, best first. Unlike
+     *     {@link #requestRecommendation}, never falls back to the request's default config.
+     */
+    @Override
+    public List<WifiConfiguration> requestRankedRecommendations(
+            RecommendationRequest request, int maxResults) {
+        final ScanResult[] results = request.getScanResults();
+        final TopKSelector selector = new TopKSelector(
+                maxResults, results != null ? ssidGroups(results) : null);
+        rankScanResults(request, mStorage.snapshot(), selector, null /* deadline */);
+        final int[] ranked = selector.drainIndices();
+        List<WifiConfiguration> configs = new ArrayList<>(ranked.length);
+        for (int i = 0; i < ranked.length; i++) {
+            configs.add(createRecommendedConfig(results[ranked[i]].SSID, results[ranked[i]].BSSID));
+        }
+        recordRecommendations(configs.isEmpty() ? null : configs.get(0), 1);
+        return configs;
+    }
 
-                final int score = network.rssiCurve.lookupScore(scanResult.level);
-                Blog.v(TAG, "Scored " + scanResult + ": " + score);
-                if (score > recommendedScore) {
-                    recommendedScanResult = scanResult;
-                    recommendedScore = score;
-                    Blog.v(TAG, "New recommended network: " + scanResult);
-                    continue;
-                }
+    /**
+     * Returns the group of each scan result for a {@link TopKSelector}: the index of the first
+     * result with the same SSID. Configs carry no BSSID, so one SSID is one recommendation.
+     */
+    private static int[] ssidGroups(ScanResult[] results) {
+        final int[] groups = new int[results.length];
+        final ArrayMap<String, Integer> firstIndices = new ArrayMap<>();
+        for (int i = 0; i < results.length; i++) {
+            final Integer first = firstIndices.get(results[i].SSID);
+            if (first != null) {
+                groups[i] = first;
+            } else {
+                firstIndices.put(results[i].SSID, i);
+                groups[i] = i;
             }
+        }
+        return groups;
+    }
+
+    private void recordRecommendations(@Nullable WifiConfiguration lastRecommended, int count) {
+        mLastRecommended.set(lastRecommended);
+        mRecommendationCounter.add(count);
+        Blog.d(TAG, "Recommending network: " + configToString(lastRecommended));
+    }
+
+    /**
+     * @param deadline when to stop ranking and recommend the best candidate found so far, or
+     *     null to rank every candidate.
+     */
+    private RecommendationResult recommend(RecommendationRequest request,
+            ScoreStorage.Snapshot snapshot, @Nullable RequestDeadline deadline) {
+        final WifiConfiguration recommendedConfig;
+        final long fingerprint = RecommendationCache.fingerprint(request);
+        final RecommendationCache.Outcome outcome = mRecommendationCache.get(
+                fingerprint, snapshot.getGeneration(), snapshot.getExpiryCutoff());
+        if (outcome != null) {
+            // Ranking would have looked up the recommended network; keep its frequency up so
+            // that cache hits don't leave it to be evicted.
+            snapshot.recordAccess(outcome.mSsid, outcome.mBssid);
+            // Build a fresh config; callers may modify the one they are given.
+            recommendedConfig = outcome.mSsid != null
+                    ? createRecommendedConfig(outcome.mSsid, outcome.mBssid)
+                    : null;
         } else {
-            Blog.w(TAG, "Received null scan results in request.");
+            final TopKSelector selector = new TopKSelector(1);
+            rankScanResults(request, snapshot, selector, deadline);
+            final ScanResult recommendedScanResult = selector.size() > 0
+                    ? request.getScanResults()[selector.drainIndices()[0]]
+                    : null;
+            // Only a complete ranking may be reused.
+            if (deadline == null || deadline.getStopReason() == RequestDeadline.NOT_STOPPED) {
+                mRecommendationCache.put(fingerprint, snapshot.getGeneration(),
+                        snapshot.getExpiryCutoff(), recommendedScanResult);
+            }
+            recommendedConfig = recommendedScanResult != null
+                    ? createRecommendedConfig(recommendedScanResult.SSID,
+                            recommendedScanResult.BSSID)
+                    : null;
         }
 
         // If we ended up without a recommendation, recommend the provided configuration
         // instead. If we wanted the platform to avoid this network, too, we could send back an
         // empty recommendation.
         RecommendationResult recommendationResult;
-        if (recommendedScanResult == null) {
+        if (recommendedConfig == null) {
             if (request.getDefaultWifiConfig() != null) {
+                // A cached outcome was counted when it was computed.
+                if (outcome == null) {
+                    mDiscardCounters.mDefaultConfigFallback.increment();
+                }
                 recommendationResult = RecommendationResult
                         .createConnectRecommendation(request.getDefaultWifiConfig());
             } else {
                 recommendationResult = RecommendationResult.createDoNotConnectRecommendation();
             }
         } else {
-            // Build a configuration based on the scan.
-            WifiConfiguration recommendedConfig = new WifiConfiguration();
-            recommendedConfig.SSID = SsidUtil.quoteSsid(recommendedScanResult.SSID);
-            recommendedConfig.BSSID = recommendedScanResult.BSSID;
-            recommendedConfig.allowedKeyManagement.set(WifiConfiguration.KeyMgmt.NONE);
-            recommendationResult = RecommendationResult
-                    .createConnectRecommendation(recommendedConfig);
-        }
-        synchronized (mStatsLock) {
-            mLastRecommended = recommendationResult.getWifiConfiguration();
-            mRecommendationCounter++;
-            Blog.d(TAG, "Recommending network: " + configToString(mLastRecommended));
+            recommendationResult =
+                    RecommendationResult.createConnectRecommendation(recommendedConfig);
         }
         return recommendationResult;
     }
 
+    /**
+     * Offer every scored open network in the request's scan results to the selector. Requests
+     * with at least {@link G.Netrec#parallelScoringThreshold} scan results are scored in
+     * parallel, with the same result as scoring them serially.
+     */
+    private void rankScanResults(RecommendationRequest request, ScoreStorage.Snapshot snapshot,
+            TopKSelector selector, @Nullable RequestDeadline deadline) {
+        ScanResult[] results = request.getScanResults();
+        if (results == null) {
+            Blog.w(TAG, "Received null scan results in request.");
+            mDiscardCounters.mNullScanResults.increment();
+            return;
+        }
+        final WifiConfiguration connectedConfig = request.getConnectedConfig();
+        final String connectedSsid =
+                connectedConfig != null ? SsidUtil.unquoteSsid(connectedConfig.SSID) : null;
+        final int parallelThreshold = G.Netrec.parallelScoringThreshold.get();
+        // With a single worker, forking only adds overhead.
+        if (parallelThreshold > 0
+                && results.length >= parallelThreshold
+                && ForkJoinPool.getCommonPoolParallelism() > 1) {
+            selector.merge(ForkJoinPool.commonPool().invoke(new RankTask(
+                    results, 0, results.length, snapshot, connectedSsid, connectedConfig,
+                    selector.capacity(), selector.groups(), mDiscardCounters, deadline)));
+        } else {
+            rankScanResults(results, 0, results.length, snapshot, connectedSsid, connectedConfig,
+                    selector, mDiscardCounters, deadline);
+        }
+    }
+
+    /**
+     * Offer the scored open networks among {@code results[from, to)} to the selector. Discards
+     * are counted locally and added to the shared counters once. Stops early, leaving the best
+     * candidates found so far, once the deadline says so.
+     */
+    private static void rankScanResults(ScanResult[] results, int from, int to,
+            ScoreStorage.Snapshot snapshot, @Nullable String connectedSsid,
+            @Nullable WifiConfiguration connectedConfig, TopKSelector selector,
+            DiscardCounters discardCounters, @Nullable RequestDeadline deadline) {
+        int closed = 0;
+        int unscored = 0;
+        for (int i = from; i < to; i++) {
+            if (deadline != null
+                    && (i - from) % DEADLINE_CHECK_INTERVAL == 0
+                    && deadline.shouldStop()) {
+                break;
+            }
+            final ScanResult scanResult = results[i];
+            Blog.v(TAG, "Scan: " + scanResult + " " + i);
+
+            // We only want to recommend open networks. This check is taken from
+            // places like WifiNotificationController and will be extracted to ScanResult in
+            // a future CL.
+            if (!ScanResultUtil.isScanResultForOpenEssNetwork(scanResult)) {
+                Blog.v(TAG, "Discarding closed network: " + scanResult);
+                closed++;
+                continue;
+            }
+
+            // We will only score networks we know about.
+            final ScoreEntry network = snapshot.getEntry(scanResult.SSID, scanResult.BSSID);
+            if (network == null || network.scoredNetwork.rssiCurve == null) {
+                Blog.v(TAG, "Discarding unscored network: " + scanResult);
+                unscored++;
+                continue;
+            }
+
+            final boolean isConnected =
+                    isConnectedNetwork(scanResult, connectedSsid, connectedConfig);
+            final int score = network.getCompiledScore(snapshot.getScoringPipeline())
+                    .score(scanResult.level, isConnected, scanResult.frequency);
+            Blog.v(TAG, "Scored " + scanResult + ": " + score);
+            selector.offer(score, i);
+        }
+        if (closed > 0) {
+            discardCounters.mClosedNetwork.add(closed);
+        }
+        if (unscored > 0) {
+            discardCounters.mUnscoredNetwork.add(unscored);
+        }
+    }
+
+    /**
+     * Why candidates were dropped. Scan results are only counted when a request is ranked, not
+     * when its outcome comes from {@link RecommendationCache}.
+     */
+    private static final class DiscardCounters {
+        final LongAdder mClosedNetwork = new LongAdder();
+        final LongAdder mUnscoredNetwork = new LongAdder();
+        final LongAdder mNullScanResults = new LongAdder();
+        final LongAdder mDefaultConfigFallback = new LongAdder();
+
+        void dump(PrintWriter writer) {
+            writer.println("Discarded scan results: closed: " + mClosedNetwork.sum()
+                    + ", unscored: " + mUnscoredNetwork.sum()
+                    + "; requests with null scan results: " + mNullScanResults.sum()
+                    + ", falling back to the default config: " + mDefaultConfigFallback.sum());
+        }
+    }
+
+    /**
+     * Scores a range of scan results by splitting it in halves until each is small enough to
+     * score serially, then merging the halves' selections. Snapshot reads are safe to share
+     * between threads.
+     */
+    private static class RankTask extends RecursiveTask<TopKSelector> {
+        /** Ranges at most this long are scored serially. */
+        private static final int LEAF_SIZE = 64;
+
+        private final ScanResult[] mResults;
+        private final int mFrom;
+        private final int mTo;
+        private final ScoreStorage.Snapshot mSnapshot;
+        @Nullable private final String mConnectedSsid;
+        @Nullable private final WifiConfiguration mConnectedConfig;
+        private final int mMaxResults;
+        @Nullable private final int[] mGroups;
+        private final DiscardCounters mDiscardCounters;
+        @Nullable private final RequestDeadline mDeadline;
+
+        RankTask(ScanResult[] results, int from, int to, ScoreStorage.Snapshot snapshot,
+                @Nullable String connectedSsid, @Nullable WifiConfiguration connectedConfig,
+                int maxResults, @Nullable int[] groups, DiscardCounters discardCounters,
+                @Nullable RequestDeadline deadline) {
+            mResults = results;
+            mFrom = from;
+            mTo = to;
+            mSnapshot = snapshot;
+            mConnectedSsid = connectedSsid;
+            mConnectedConfig = connectedConfig;
+            mMaxResults = maxResults;
+            mGroups = groups;
+            mDiscardCounters = discardCounters;
+            mDeadline = deadline;
+        }
+
+        @Override
+        protected TopKSelector compute() {
+            if (mTo - mFrom <= LEAF_SIZE) {
+                TopKSelector selector = new TopKSelector(mMaxResults, mGroups);
+                rankScanResults(mResults, mFrom, mTo, mSnapshot, mConnectedSsid,
+                        mConnectedConfig, selector, mDiscardCounters, mDeadline);
+                return selector;
+            }
+            int middle = (mFrom + mTo) >>> 1;
+            RankTask left = new RankTask(mResults, mFrom, middle, mSnapshot, mConnectedSsid,
+                    mConnectedConfig, mMaxResults, mGroups, mDiscardCounters, mDeadline);
+            RankTask right = new RankTask(mResults, middle, mTo, mSnapshot, mConnectedSsid,
+                    mConnectedConfig, mMaxResults, mGroups, mDiscardCounters, mDeadline);
+            left.fork();
+            TopKSelector selector = right.compute();
+            selector.merge(left.join());
+            return selector;
+        }
+    }
+
+    /** Build a configuration for a scanned open network. */
+    private static WifiConfiguration createRecommendedConfig(String ssid, String bssid) {
+        WifiConfiguration recommendedConfig = new WifiConfiguration();
+        recommendedConfig.SSID = SsidUtil.quoteSsid(ssid);
+        recommendedConfig.BSSID = bssid;
+        recommendedConfig.allowedKeyManagement.set(WifiConfiguration.KeyMgmt.NONE);
+        return recommendedConfig;
+    }
+
+    /**
+     * Returns true if the scan result is for the network the device is connected to.
+     *
+     * @param connectedSsid the unquoted ssid of {@code connectedConfig}.
+     */
+    private static boolean isConnectedNetwork(ScanResult scanResult,
+            @Nullable String connectedSsid, @Nullable WifiConfiguration connectedConfig) {
+        if (connectedSsid == null || !connectedSsid.equals(scanResult.SSID)) {
+            return false;
+        }
+        // The framework may leave the bssid unset or set to "any" for the connected network.
+        return BssidUtil.pack(connectedConfig.BSSID) == BssidUtil.INVALID
+                || connectedConfig.BSSID.equalsIgnoreCase(scanResult.BSSID);
+    }
+
     /** Score networks based on a few properties ... */
     @Override
     public void onRequestScores(NetworkKey[] networks) {
-        synchronized (mStatsLock) {
-            mScoreCounter++;
-        }
+        final long start = SystemClock.elapsedRealtimeNanos();
+        mScoreCounter.increment();
+        mLanes.execute(PriorityLaneExecutor.LANE_BULK, "requestScores",
+                () -> requestScores(networks, 0, start));
+    }
+
+    /**
+     * Score {@code networks[from..]}. If a recommendation request is waiting, stops at the next
+     * key, publishes the scores so far and requeues the remaining keys at the front of the bulk
+     * lane.
+     */
+    private void requestScores(NetworkKey[] networks, int from, long start) {
+        final ScoreStorage.Snapshot snapshot = mStorage.snapshot();
         List<ScoredNetwork> scoredNetworks = new ArrayList<>();
-        for (int i = 0; i < networks.length; i++) {
+        for (int i = from; i < networks.length; i++) {
+            if (i > from && mLanes.hasWaiting(PriorityLaneExecutor.LANE_URGENT)) {
+                final int next = i;
+                mLanes.executeFirst(PriorityLaneExecutor.LANE_BULK, "requestScores",
+                        () -> requestScores(networks, next, start));
+                mPreemptedScoreRequests.increment();
+                publishScores(scoredNetworks);
+                return;
+            }
             NetworkKey key = networks[i];
 
             // Score a network if we know about it.
-            ScoredNetwork scoredNetwork = mStorage.get(key);
+            ScoredNetwork scoredNetwork = snapshot.get(key);
             if (scoredNetwork != null) {
                 scoredNetworks.add(scoredNetwork);
                 continue;
@@ -252,12 +622,18 @@ public class DefaultNetworkRecommendationProvider
             scoredNetworks.add(new ScoredNetwork(key, null, false /* meteredHint */));
             continue;
         }
+        publishScores(scoredNetworks);
+        mScoreRequestLatency.record(SystemClock.elapsedRealtimeNanos() - start);
+    }
+
+    private void publishScores(List<ScoredNetwork> scoredNetworks) {
         if (scoredNetworks.isEmpty()) {
             return;
         }
 
         Blog.d(TAG, "Scored networks: " + scoredNetworks);
-        safelyUpdateScores(scoredNetworks.toArray(new ScoredNetwork[scoredNetworks.size()]));
+        mScorePublisher.publish(
+                scoredNetworks.toArray(new ScoredNetwork[scoredNetworks.size()]));
     }
 
     void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
@@ -267,91 +643,70 @@ public class DefaultNetworkRecommendationProvider
                 clearScoresForTest();
                 writer.println("Clearing store");
                 return;
+            } else if ("scores".equals(args[i])) {
+                try {
+                    mStorage.dump(writer, ScoreDumpOptions.parse(args, i + 1));
+                } catch (IllegalArgumentException e) {
+                    writer.println("Bad scores option: " + e.getMessage());
+                    writer.println(ScoreDumpOptions.USAGE);
+                }
+                return;
+            } else if ("importScores".equals(args[i])) {
+                i++;
+                try {
+                    writer.println(ScoreImporter.importFile(new File(args[i]), mStorage));
+                } catch (IOException e) {
+                    writer.println("Failed to import " + args[i] + ": " + e);
+                }
+                return;
             } else if ("addScore".equals(args[i])) {
                 i++;
-                ScoredNetwork scoredNetwork = parseScore(args[i]);
-                addScoreForTest(scoredNetwork);
-                writer.println("Added: " + scoredNetwork);
+                try {
+                    ScoredNetwork scoredNetwork = ScoreParser.parse(args[i]);
+                    addScoreForTest(scoredNetwork);
+                    writer.println("Added: " + scoredNetwork);
+                } catch (ScoreParseException e) {
+                    writer.println("Bad score: " + e.getMessage());
+                }
                 return;
             } else {
                 writer.println("Unrecognized command: " + args[i]);
             }
         }
         mStorage.dump(fd, writer, args);
-        synchronized (mStatsLock) {
-            writer.println("Recommendation requests: " + mRecommendationCounter);
-            writer.println("Last Recommended: " + configToString(mLastRecommended));
-            writer.println("Score requests: " + mScoreCounter);
-        }
+        writer.println("Recommendation requests: " + mRecommendationCounter.sum());
+        writer.println("Last Recommended: " + configToString(mLastRecommended.get()));
+        writer.println("Score requests: " + mScoreCounter.sum()
+                + ", preempted by recommendations: " + mPreemptedScoreRequests.sum());
+        mLanes.dump(writer);
+        mDiscardCounters.dump(writer);
+        writer.println("Recommendation deadline: " + mRecommendationDeadlineMillis + "ms"
+                + ", missed: " + mDeadlineMisses.sum()
+                + ", partial results: " + mPartialResults.sum()
+                + ", superseded: " + mSupersededRequests.sum());
+        writer.println("requestRecommendation latency by outcome:");
+        writer.println("  " + mConnectLatency);
+        writer.println("  " + mDoNotConnectLatency);
+        writer.println("  " + mDefaultConfigLatency);
+        writer.println("Latency:");
+        writer.println("  " + mRecommendationCallbackLatency);
+        writer.println("  " + mScoreRequestLatency);
+        mRecommendationCache.dump(writer);
+        mScorePublisher.dump(writer);
     }
 
     @VisibleForTesting
     void addScoreForTest(ScoredNetwork scoredNetwork) {
         mStorage.addScore(scoredNetwork);
         if (!WILDCARD_MAC.equals(scoredNetwork.networkKey.wifiKey.bssid)) {
-            safelyUpdateScores(new ScoredNetwork[]{scoredNetwork});
+            mScorePublisher.publish(new ScoredNetwork[]{scoredNetwork});
         }
     }
 
     @VisibleForTesting
     void clearScoresForTest() {
         mStorage.clear();
-        safelyClearScores();
-    }
-
-    private void safelyUpdateScores(ScoredNetwork[] networkScores) {
-        // Depending on races, etc, we might be alive when not the active scorer. Safely catch
-        // and ignore security exceptions
-        try {
-            mScoreManager.updateScores(networkScores);
-        } catch (SecurityException e) {
-            Blog.w(TAG, "Tried to update scores when not the active scorer.");
-        }
-    }
-
-    private void safelyClearScores() {
-        // Depending on races, etc, we might be alive when not the active scorer. Safely catch
-        // and ignore security exceptions
-        try {
-            mScoreManager.clearScores();
-        } catch (SecurityException e) {
-            Blog.w(TAG, "Tried to update scores when not the active scorer.");
-        }
-    }
-
-    private static ScoredNetwork parseScore(String score) {
-        String[] splitScore = score.split("\\|");
-        String[] splitWifiKey = splitScore[0].split(",");
-        NetworkKey networkKey = new NetworkKey(new WifiKey(splitWifiKey[0], splitWifiKey[1]));
-
-        String[] splitRssiCurve = splitScore[1].split(",");
-        int bucketWidth = Integer.parseInt(splitRssiCurve[0]);
-        byte[] rssiBuckets = new byte[splitRssiCurve.length - 1];
-        for (int i = 1; i < splitRssiCurve.length; i++) {
-            rssiBuckets[i - 1] = Integer.valueOf(splitRssiCurve[i]).byteValue();
-        }
-
-        boolean meteredHint = "1".equals(splitScore[2]);
-        Bundle attributes = new Bundle();
-        if (!TextUtils.isEmpty(splitScore[3])) {
-            attributes.putBoolean(
-                    ScoredNetwork.ATTRIBUTES_KEY_HAS_CAPTIVE_PORTAL, "1".equals(splitScore[3]));
-        }
-        if (splitScore.length > 4) {
-            String badge = splitScore[4].toUpperCase();
-            if ("SD".equals(badge)) {
-                attributes.putParcelable(
-                        ScoredNetwork.ATTRIBUTES_KEY_BADGING_CURVE, BADGE_CURVE_SD);
-            } else if ("HD".equals(badge)) {
-                attributes.putParcelable(
-                        ScoredNetwork.ATTRIBUTES_KEY_BADGING_CURVE, BADGE_CURVE_HD);
-            } else if ("4K".equals(badge)) {
-                attributes.putParcelable(
-                        ScoredNetwork.ATTRIBUTES_KEY_BADGING_CURVE, BADGE_CURVE_4K);
-            }
-        }
-        RssiCurve rssiCurve = new RssiCurve(CONSTANT_CURVE_START, bucketWidth, rssiBuckets, 0);
-        return new ScoredNetwork(networkKey, rssiCurve, meteredHint, attributes);
+        mScorePublisher.clearScores();
     }
 
     /** Print a shorter config string, for dumpsys. */
@@ -367,12 +722,92 @@ public class DefaultNetworkRecommendationProvider
         return sb.toString();
     }
 
-    /** Stores scores about networks. Initial implementation is in-memory-only. */
+    /**
+     * Stores scores about networks.
+     *
+     * <p>Scores are published as immutable {@link ScoreIndex} snapshots through a volatile
+     * reference. Readers never block; writers serialize on {@link #mWriteLock}, copy the current
+     * snapshot, apply their change and swap the copy in.
+     *
+     * <p>If constructed with a {@link ScoreFile}, scores written by a previous process are
+     * memory mapped at construction and consulted after the in-memory scores, and every change
+     * schedules a rewrite of the file merging both.
+     *
+     * <p>Storage is bounded by {@link G.Netrec#scoreStorageCapacity}. Every lookup is recorded in
+     * a {@link FrequencySketch}; once full, a new score is only admitted if its network has been
+     * looked up more often than the least frequently used of a random sample of stored scores,
+     * which it then replaces. Scores older than {@link G.Netrec#scoreTtlMillis} are ignored by
+     * lookups and dropped on the next write.
+     */
     @VisibleForTesting
     static class ScoreStorage {
+        /** Number of stored scores sampled when choosing an eviction victim. */
+        private static final int EVICTION_SAMPLE_SIZE = 8;
+        /** Minimum interval between full scans for expired scores when storage is full. */
+        private static final long EXPIRY_SCAN_INTERVAL_MS = TimeUnit.HOURS.toMillis(1);
+
+        private final Object mWriteLock = new Object();
+
+        /** The current snapshot. Never mutated once published. */
+        private volatile ScoreIndex mScores = new ScoreIndex();
+
+        /**
+         * Incremented after every change to {@link #mScores} or {@link #mPersisted}, so that
+         * results computed from a snapshot can be recognized as still current.
+         */
+        private volatile long mGeneration = 0;
+
+        /** Scores last written to {@link #mFile}, or null if there are none. */
+        @Nullable
+        private volatile ScoreFile.Mapping mPersisted;
+
+        @Nullable
+        private final ScoreFile mFile;
+        @Nullable
+        private final Executor mWriteExecutor;
+        private final AtomicBoolean mWritePending = new AtomicBoolean(false);
+        @GuardedBy("mWriteLock")
+        private int mClearCount = 0;
+
+        private final int mCapacity;
+        private final long mTtlMillis;
+        /**
+         * Scores are compiled under this pipeline when first ranked. Only networks actually seen
+         * in scans pay for the tables, rather than every stored score.
+         */
+        private final ScoringPipeline mScoringPipeline;
+        private final FrequencySketch mSketch;
+        @GuardedBy("mWriteLock")
+        private final Random mRandom = new Random();
+        @GuardedBy("mWriteLock")
+        private long mNextExpiryScanMillis = 0;
+        @GuardedBy("mWriteLock")
+        private int mEvictionCount = 0;
+        @GuardedBy("mWriteLock")
+        private int mRejectionCount = 0;
+        @GuardedBy("mWriteLock")
+        private int mExpirationCount = 0;
 
-        @GuardedBy("mScores")
-        private final ArrayMap<NetworkKey, ScoredNetwork> mScores = new ArrayMap<>();
+        /** Create an in-memory-only store. */
+        ScoreStorage() {
+            this(null /* file */, null /* writeExecutor */);
+        }
+
+        /**
+         * Create a store backed by the given file.
+         *
+         * @param writeExecutor a serial executor on which the file is rewritten. It may delay
+         *     execution to coalesce bursts of changes into a single write.
+         */
+        ScoreStorage(@Nullable ScoreFile file, @Nullable Executor writeExecutor) {
+            mFile = file;
+            mWriteExecutor = writeExecutor;
+            mCapacity = Math.max(1, G.Netrec.scoreStorageCapacity.get());
+            mTtlMillis = G.Netrec.scoreTtlMillis.get();
+            mScoringPipeline = ScoringPipeline.createDefault();
+            mSketch = new FrequencySketch(mCapacity);
+            mPersisted = file != null ? file.map() : null;
+        }
 
         /**
          * Store a score in storage.
@@ -383,45 +818,449 @@ public class DefaultNetworkRecommendationProvider
          */
         public void addScore(ScoredNetwork scoredNetwork) {
             Blog.d(TAG, "addScore: " + scoredNetwork);
-            synchronized (mScores) {
-                mScores.put(scoredNetwork.networkKey, scoredNetwork);
+            final long now = System.currentTimeMillis();
+            synchronized (mWriteLock) {
+                ScoreIndex scores = mScores.copy();
+                prepareForAdd(scores, now);
+                add(scores, new ScoreEntry(scoredNetwork, now), notBefore(now));
+                mScores = scores;
+                mGeneration++;
             }
+            scheduleWrite();
         }
 
-        public ScoredNetwork get(NetworkKey key) {
-            synchronized (mScores) {
-                // Try to find a score for the requested bssid.
-                ScoredNetwork scoredNetwork = mScores.get(key);
-                if (scoredNetwork != null) {
-                    return scoredNetwork;
+        /**
+         * Store many scores, publishing them to readers in a single swap.
+         *
+         * @return the number of scores admitted to storage.
+         * @see #addScore(ScoredNetwork)
+         */
+        public int addScores(Collection<ScoredNetwork> scoredNetworks) {
+            Blog.d(TAG, "addScores: %d", scoredNetworks.size());
+            final long now = System.currentTimeMillis();
+            final long notBefore = notBefore(now);
+            int admitted = 0;
+            synchronized (mWriteLock) {
+                ScoreIndex scores = mScores.copy();
+                prepareForAdd(scores, now);
+                for (ScoredNetwork scoredNetwork : scoredNetworks) {
+                    if (add(scores, new ScoreEntry(scoredNetwork, now), notBefore)) {
+                        admitted++;
+                    }
                 }
-                // Try to find a score for a wildcard ssid.
-                NetworkKey wildcardKey = new NetworkKey(
-                        new WifiKey(key.wifiKey.ssid, WILDCARD_MAC));
-                scoredNetwork = mScores.get(wildcardKey);
-                if (scoredNetwork != null) {
-                    // If the fetched score was a wildcard score, construct a synthetic score
-                    // for the requested bssid and return it.
-                    return new ScoredNetwork(
-                            key, scoredNetwork.rssiCurve, scoredNetwork.meteredHint,
-                            scoredNetwork.attributes);
+                mScores = scores;
+                mGeneration++;
+            }
+            scheduleWrite();
+            return admitted;
+        }
+
+        /** Drop expired scores from a full index, at most once per scan interval. */
+        @GuardedBy("mWriteLock")
+        private void prepareForAdd(ScoreIndex scores, long now) {
+            if (scores.size() < mCapacity || now < mNextExpiryScanMillis) {
+                return;
+            }
+            mNextExpiryScanMillis = now + EXPIRY_SCAN_INTERVAL_MS;
+            mExpirationCount += scores.removeExpired(notBefore(now));
+        }
+
+        /**
+         * Add a score, making room for it if the index is full and the score is admitted.
+         *
+         * @return whether the score was admitted.
+         */
+        @GuardedBy("mWriteLock")
+        private boolean add(ScoreIndex scores, ScoreEntry scoreEntry, long notBefore) {
+            final WifiKey wifiKey = scoreEntry.scoredNetwork.networkKey.wifiKey;
+            final long bssid = BssidUtil.pack(wifiKey.bssid);
+            if (scores.size() < mCapacity || scores.get(wifiKey.ssid, bssid) != null) {
+                scores.put(scoreEntry);
+                return true;
+            }
+            ScoreEntry victim = null;
+            int victimFrequency = Integer.MAX_VALUE;
+            for (int i = 0; i < EVICTION_SAMPLE_SIZE; i++) {
+                ScoreEntry sample = scores.sample(mRandom);
+                if (sample.isExpired(notBefore)) {
+                    victim = sample;
+                    victimFrequency = -1;
+                    break;
                 }
+                int frequency = frequencyOf(sample);
+                if (frequency < victimFrequency) {
+                    victim = sample;
+                    victimFrequency = frequency;
+                }
+            }
+            if (victimFrequency >= mSketch.frequency(FrequencySketch.keyOf(wifiKey.ssid, bssid))) {
+                mRejectionCount++;
+                return false;
+            }
+            if (victimFrequency < 0) {
+                mExpirationCount++;
+            } else {
+                mEvictionCount++;
+            }
+            final WifiKey victimKey = victim.scoredNetwork.networkKey.wifiKey;
+            scores.remove(victimKey.ssid, BssidUtil.pack(victimKey.bssid));
+            scores.put(scoreEntry);
+            return true;
+        }
+
+        private int frequencyOf(ScoreEntry scoreEntry) {
+            final WifiKey wifiKey = scoreEntry.scoredNetwork.networkKey.wifiKey;
+            return mSketch.frequency(
+                    FrequencySketch.keyOf(wifiKey.ssid, BssidUtil.pack(wifiKey.bssid)));
+        }
+
+        /** Returns the update time before which scores are expired. */
+        private long notBefore(long now) {
+            return mTtlMillis > 0 ? now - mTtlMillis : Long.MIN_VALUE;
+        }
+
+        /** Record a lookup of both the exact key and the ssid's wildcard key. */
+        private void recordAccess(String ssid, long bssid) {
+            mSketch.increment(FrequencySketch.keyOf(ssid, bssid));
+            if (bssid != BssidUtil.WILDCARD) {
+                mSketch.increment(FrequencySketch.keyOf(ssid, BssidUtil.WILDCARD));
+            }
+        }
+
+        /**
+         * Returns the score that applies to the given network. If only a wildcard score is
+         * stored, returns a synthetic score for the requested bssid built from it.
+         */
+        public ScoredNetwork get(NetworkKey key) {
+            return get(mScores, mPersisted, notBefore(System.currentTimeMillis()), key);
+        }
+
+        /**
+         * Returns the score that applies to the given ssid and bssid. The returned score may be a
+         * wildcard score, keyed by "00:00:00:00:00:00".
+         *
+         * @param ssid the ssid, either quoted or as reported in a scan result.
+         */
+        public ScoredNetwork get(String ssid, String bssid) {
+            final ScoreEntry scoreEntry = getEntry(ssid, bssid);
+            return scoreEntry != null ? scoreEntry.scoredNetwork : null;
+        }
+
+        /**
+         * Returns the stored entry that applies to the given ssid and bssid, which may be a
+         * wildcard entry. Does not allocate unless the entry is read from the persisted file for
+         * the first time.
+         *
+         * @param ssid the ssid, either quoted or as reported in a scan result.
+         */
+        @Nullable
+        public ScoreEntry getEntry(String ssid, String bssid) {
+            return getEntry(
+                    mScores, mPersisted, notBefore(System.currentTimeMillis()), ssid, bssid);
+        }
+
+        /**
+         * Returns a consistent view of the current scores for resolving many lookups. Later
+         * changes to storage are not visible through the snapshot.
+         */
+        public Snapshot snapshot() {
+            // Read the generation first: the scores read after it are at least that new.
+            final long generation = mGeneration;
+            return new Snapshot(
+                    generation, mScores, mPersisted, notBefore(System.currentTimeMillis()));
+        }
+
+        private ScoredNetwork get(ScoreIndex scores, @Nullable ScoreFile.Mapping persisted,
+                long notBefore, NetworkKey key) {
+            if (key.type != NetworkKey.TYPE_WIFI || key.wifiKey == null) {
                 return null;
             }
+            final String ssid = key.wifiKey.ssid;
+            final long bssid = BssidUtil.pack(key.wifiKey.bssid);
+            recordAccess(ssid, bssid);
+            if (persisted == null) {
+                return scores.resolve(key, notBefore);
+            }
+            ScoreEntry scoreEntry = unexpired(scores.get(ssid, bssid), notBefore);
+            if (scoreEntry == null) {
+                scoreEntry = unexpired(persisted.get(ssid, bssid), notBefore);
+            }
+            if (scoreEntry != null) {
+                return scoreEntry.scoredNetwork;
+            }
+            ScoredNetwork scoredNetwork = scores.resolve(key, notBefore);
+            if (scoredNetwork == null) {
+                ScoreEntry wildcard =
+                        unexpired(persisted.get(ssid, BssidUtil.WILDCARD), notBefore);
+                if (wildcard != null) {
+                    scoredNetwork = new ScoredNetwork(
+                            key,
+                            wildcard.scoredNetwork.rssiCurve,
+                            wildcard.scoredNetwork.meteredHint,
+                            wildcard.scoredNetwork.attributes);
+                }
+            }
+            return scoredNetwork;
+        }
+
+        @Nullable
+        private ScoreEntry getEntry(ScoreIndex scores, @Nullable ScoreFile.Mapping persisted,
+                long notBefore, String ssid, String bssid) {
+            final long packedBssid = BssidUtil.pack(bssid);
+            if (ssid != null) {
+                recordAccess(ssid, packedBssid);
+            }
+            if (persisted == null) {
+                return scores.resolve(ssid, packedBssid, notBefore);
+            }
+            ScoreEntry scoreEntry = unexpired(scores.get(ssid, packedBssid), notBefore);
+            if (scoreEntry == null) {
+                scoreEntry = unexpired(persisted.get(ssid, packedBssid), notBefore);
+            }
+            if (scoreEntry == null) {
+                scoreEntry = unexpired(scores.get(ssid, BssidUtil.WILDCARD), notBefore);
+            }
+            if (scoreEntry == null) {
+                scoreEntry = unexpired(persisted.get(ssid, BssidUtil.WILDCARD), notBefore);
+            }
+            return scoreEntry;
+        }
+
+        @Nullable
+        private static ScoreEntry unexpired(@Nullable ScoreEntry scoreEntry, long notBefore) {
+            return scoreEntry != null && !scoreEntry.isExpired(notBefore) ? scoreEntry : null;
+        }
+
+        /**
+         * A fixed view of storage: the in-memory and persisted scores and the expiry cutoff as
+         * of its creation.
+         */
+        class Snapshot {
+            private final long mSnapshotGeneration;
+            private final ScoreIndex mSnapshotScores;
+            @Nullable
+            private final ScoreFile.Mapping mSnapshotPersisted;
+            private final long mNotBefore;
+
+            private Snapshot(long generation, ScoreIndex scores,
+                    @Nullable ScoreFile.Mapping persisted, long notBefore) {
+                mSnapshotGeneration = generation;
+                mSnapshotScores = scores;
+                mSnapshotPersisted = persisted;
+                mNotBefore = notBefore;
+            }
+
+            /** Returns the storage generation this snapshot was taken at. */
+            public long getGeneration() {
+                return mSnapshotGeneration;
+            }
+
+            /** Returns the pipeline under which stored scores are compiled. */
+            public ScoringPipeline getScoringPipeline() {
+                return mScoringPipeline;
+            }
+
+            /** Returns the update time before which scores are treated as expired. */
+            public long getExpiryCutoff() {
+                return mNotBefore;
+            }
+
+            /** @see ScoreStorage#get(NetworkKey) */
+            public ScoredNetwork get(NetworkKey key) {
+                return ScoreStorage.this.get(
+                        mSnapshotScores, mSnapshotPersisted, mNotBefore, key);
+            }
+
+            /** @see ScoreStorage#getEntry(String, String) */
+            @Nullable
+            public ScoreEntry getEntry(String ssid, String bssid) {
+                return ScoreStorage.this.getEntry(
+                        mSnapshotScores, mSnapshotPersisted, mNotBefore, ssid, bssid);
+            }
+
+            /** Record an access as {@link #getEntry} does. */
+            public void recordAccess(String ssid, String bssid) {
+                if (ssid != null) {
+                    ScoreStorage.this.recordAccess(ssid, BssidUtil.pack(bssid));
+                }
+            }
         }
 
         public void clear() {
-            synchronized (mScores) {
-                mScores.clear();
+            synchronized (mWriteLock) {
+                mScores = new ScoreIndex();
+                mPersisted = null;
+                mGeneration++;
+                mClearCount++;
             }
+            scheduleWrite();
         }
 
         public void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
-            synchronized (mScores) {
-                for (ScoredNetwork score : mScores.values()) {
-                    writer.println(score);
+            dump(writer, ScoreDumpOptions.ALL);
+        }
+
+        /** Print the stored scores selected by the options, followed by storage stats. */
+        void dump(PrintWriter writer, ScoreDumpOptions options) {
+            // Printing from a snapshot never holds up readers or writers.
+            final ScoreIndex scores = mScores;
+            final ScoreFile.Mapping persisted = mPersisted;
+            final long notBefore = notBefore(System.currentTimeMillis());
+            // Persisted scores are served unless shadowed by a score in memory, so list those too.
+            final List<ScoreEntry> entries = scores.entries();
+            int persistedCount = 0;
+            if (persisted != null) {
+                for (ScoreEntry scoreEntry : persisted.values()) {
+                    final WifiKey wifiKey = scoreEntry.scoredNetwork.networkKey.wifiKey;
+                    if (scores.get(wifiKey.ssid, BssidUtil.pack(wifiKey.bssid)) == null) {
+                        entries.add(scoreEntry);
+                        persistedCount++;
+                    }
+                }
+            }
+            int matched = 0;
+            int printed = 0;
+            int metered = 0;
+            int captivePortal = 0;
+            int expired = 0;
+            ArrayMap<String, Integer> badges = new ArrayMap<>();
+            for (ScoreEntry scoreEntry : entries) {
+                if (!options.matches(scoreEntry)) {
+                    continue;
+                }
+                if (matched++ >= options.getOffset()
+                        && printed < options.getLimit()
+                        && !options.isSummary()) {
+                    writer.println(scoreEntry.scoredNetwork);
+                    printed++;
+                }
+                final ScoredNetwork scoredNetwork = scoreEntry.scoredNetwork;
+                if (scoredNetwork.meteredHint) {
+                    metered++;
+                }
+                if (scoredNetwork.attributes != null && scoredNetwork.attributes.getBoolean(
+                        ScoredNetwork.ATTRIBUTES_KEY_HAS_CAPTIVE_PORTAL)) {
+                    captivePortal++;
                 }
+                if (scoreEntry.isExpired(notBefore)) {
+                    expired++;
+                }
+                final String badge = ScoreDumpOptions.badgeOf(scoredNetwork);
+                final Integer count = badges.get(badge);
+                badges.put(badge, count == null ? 1 : count + 1);
+            }
+            writer.println("Matched scores: " + matched + " of " + entries.size()
+                    + ", printed: " + printed
+                    + ", metered: " + metered
+                    + ", captive portal: " + captivePortal
+                    + ", expired: " + expired
+                    + ", badges: " + badges);
+            writer.println("Persisted scores: " + (persisted != null ? persisted.size() : 0)
+                    + ", not in memory: " + persistedCount);
+            synchronized (mWriteLock) {
+                writer.println(
+                        "Capacity: " + scores.size() + "/" + mCapacity
+                                + ", ttl: " + mTtlMillis + "ms"
+                                + ", evicted: " + mEvictionCount
+                                + ", rejected: " + mRejectionCount
+                                + ", expired: " + mExpirationCount);
+            }
+        }
+
+        private void scheduleWrite() {
+            if (mFile == null || mWritePending.getAndSet(true)) {
+                return;
+            }
+            mWriteExecutor.execute(this::writeFile);
+        }
+
+        /**
+         * Write the file now if a write is pending, rather than after the write executor's delay.
+         * Call on the write executor's thread, such as before shutting it down.
+         */
+        public void flushPendingWrite() {
+            writeFile();
+        }
+
+        private void writeFile() {
+            // Clear the flag first so changes made while writing schedule another write. Nothing
+            // pending means a flush already wrote the changes.
+            if (!mWritePending.getAndSet(false)) {
+                return;
+            }
+            final long notBefore = notBefore(System.currentTimeMillis());
+            final int clearCount;
+            final ScoreIndex scores;
+            final ScoreFile.Mapping persisted;
+            synchronized (mWriteLock) {
+                // Expired scores will not be written, so drop them from memory too.
+                ScoreIndex unexpired = mScores.copy();
+                int expired = unexpired.removeExpired(notBefore);
+                if (expired > 0) {
+                    mExpirationCount += expired;
+                    mScores = unexpired;
+                    mGeneration++;
+                }
+                clearCount = mClearCount;
+                scores = mScores;
+                persisted = mPersisted;
             }
+            ScoreIndex merged = new ScoreIndex();
+            if (persisted != null) {
+                for (ScoreEntry scoreEntry : persisted.values()) {
+                    merged.put(scoreEntry);
+                }
+            }
+            for (ScoreEntry scoreEntry : scores.entries()) {
+                merged.put(scoreEntry);
+            }
+            merged.removeExpired(notBefore);
+            List<ScoreEntry> entries = trimToCapacity(merged.entries());
+            try {
+                mFile.write(entries);
+            } catch (IOException e) {
+                Blog.w(TAG, e, "Failed to write scores.");
+                return;
+            }
+            ScoreFile.Mapping mapping = mFile.map();
+            synchronized (mWriteLock) {
+                // A clear while writing will be followed by another write; don't resurrect
+                // cleared scores in the meantime.
+                if (clearCount == mClearCount) {
+                    mPersisted = mapping;
+                    mGeneration++;
+                }
+            }
+        }
+
+        /** Keep the most frequently used, then most recently updated, scores. */
+        private List<ScoreEntry> trimToCapacity(List<ScoreEntry> entries) {
+            final int size = entries.size();
+            if (size <= mCapacity) {
+                return entries;
+            }
+            // Snapshot frequencies up front; the sketch may change while sorting.
+            final int[] frequencies = new int[size];
+            final Integer[] order = new Integer[size];
+            for (int i = 0; i < size; i++) {
+                frequencies[i] = frequencyOf(entries.get(i));
+                order[i] = i;
+            }
+            Arrays.sort(
+                    order,
+                    (a, b) -> {
+                        int result = Integer.compare(frequencies[b], frequencies[a]);
+                        return result != 0
+                                ? result
+                                : Long.compare(
+                                        entries.get(b).updatedMillis,
+                                        entries.get(a).updatedMillis);
+                    });
+            List<ScoreEntry> trimmed = new ArrayList<>(mCapacity);
+            for (int i = 0; i < mCapacity; i++) {
+                trimmed.add(entries.get(order[i]));
+            }
+            return trimmed;
         }
     }
 
@@ -429,4 +1268,14 @@ public class DefaultNetworkRecommendationProvider
     public ScoredNetwork getCachedScoredNetwork(NetworkKey networkKey) {
         return mStorage.get(networkKey);
     }
+
+    @Override
+    public ScoredNetwork[] getCachedScoredNetworks(NetworkKey[] networkKeys) {
+        final ScoreStorage.Snapshot snapshot = mStorage.snapshot();
+        ScoredNetwork[] scoredNetworks = new ScoredNetwork[networkKeys.length];
+        for (int i = 0; i < networkKeys.length; i++) {
+            scoredNetworks[i] = snapshot.get(networkKeys[i]);
+        }
+        return scoredNetworks;
+    }
 }
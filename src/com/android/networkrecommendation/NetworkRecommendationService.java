@@ -23,20 +23,28 @@ import android.content.Intent;
 import android.content.res.Resources;
 import android.net.NetworkScoreManager;
 import android.net.wifi.WifiManager;
-import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.IBinder;
 import android.os.Looper;
 import android.os.PowerManager;
+import android.os.Process;
+import android.os.SystemClock;
 import android.os.UserManager;
 
+import com.android.networkrecommendation.config.G;
 import com.android.networkrecommendation.notify.WifiNotificationController;
 import com.android.networkrecommendation.notify.WifiNotificationHelper;
+import com.android.networkrecommendation.scan.ScanResultHub;
+import com.android.networkrecommendation.storage.ScoreFile;
+import com.android.networkrecommendation.util.InstrumentedHandler;
 import com.android.networkrecommendation.util.NotificationChannelUtil;
+import com.android.networkrecommendation.util.PriorityLaneExecutor;
+import com.android.networkrecommendation.util.StartupTrace;
 import com.android.networkrecommendation.wakeup.WifiWakeupController;
 import com.android.networkrecommendation.wakeup.WifiWakeupHelper;
 import com.android.networkrecommendation.wakeup.WifiWakeupNetworkSelector;
 
+import java.io.File;
 import java.io.FileDescriptor;
 import java.io.PrintWriter;
 
@@ -45,70 +53,182 @@ import java.io.PrintWriter;
  */
 public class NetworkRecommendationService extends Service {
 
+    /** Name of the score file, kept in device protected storage so it is usable before unlock. */
+    private static final String SCORE_FILE_NAME = "scores.bin";
+
+    /** How long to coalesce score changes before rewriting the score file. */
+    private static final long SCORE_WRITE_DELAY_MS = 5000;
+
+    private final StartupTrace mStartupTrace = new StartupTrace();
     private HandlerThread mProviderHandlerThread;
-    private Handler mProviderHandler;
+    private InstrumentedHandler mProviderHandler;
     private HandlerThread mControllerHandlerThread;
-    private Handler mControllerHandler;
+    private InstrumentedHandler mControllerHandler;
+    private HandlerThread mStorageHandlerThread;
+    private InstrumentedHandler mStorageHandler;
+    private DefaultNetworkRecommendationProvider.ScoreStorage mScoreStorage;
+    private ScorePublisher mScorePublisher;
     private DefaultNetworkRecommendationProvider mProvider;
-    private WifiNotificationController mWifiNotificationController;
-    private WifiWakeupController mWifiWakeupController;
+    /** Created on the controller thread on first bind; null until then. */
+    private volatile WifiNotificationController mWifiNotificationController;
+    /** Created on the controller thread on first bind; null until then. */
+    private volatile WifiWakeupController mWifiWakeupController;
+    /** Created on the controller thread on first bind; null until then. */
+    private volatile ScanResultHub mScanResultHub;
+    private boolean mBound;
 
+    /**
+     * Only the provider, which the platform binds to as soon as the service is up, is created
+     * here. Notification channels and the controllers are set up on the controller thread.
+     */
     @Override
     public void onCreate() {
+        long start = SystemClock.elapsedRealtimeNanos();
+        long messageBudgetMillis = G.Netrec.handlerMessageBudgetMillis.get();
         mProviderHandlerThread = new HandlerThread("RecommendationProvider");
         mProviderHandlerThread.start();
-        mProviderHandler = new Handler(mProviderHandlerThread.getLooper());
-        NetworkScoreManager networkScoreManager = getSystemService(NetworkScoreManager.class);
-        mProvider = new DefaultNetworkRecommendationProvider(this, mProviderHandler::post,
-                networkScoreManager, new DefaultNetworkRecommendationProvider.ScoreStorage());
-
-        mControllerHandlerThread = new HandlerThread("RecommendationProvider");
+        mProviderHandler = new InstrumentedHandler(mProviderHandlerThread.getLooper(),
+                "RecommendationProvider", messageBudgetMillis);
+        mStorageHandlerThread =
+                new HandlerThread("ScoreStorage", Process.THREAD_PRIORITY_BACKGROUND);
+        mStorageHandlerThread.start();
+        mStorageHandler = new InstrumentedHandler(mStorageHandlerThread.getLooper(),
+                "ScoreStorage", messageBudgetMillis);
+        mControllerHandlerThread = new HandlerThread("RecommendationController");
         mControllerHandlerThread.start();
-        mControllerHandler = new Handler(mControllerHandlerThread.getLooper());
-        NotificationManager notificationManager = getSystemService(NotificationManager.class);
-        NotificationChannelUtil.configureNotificationChannels(notificationManager, this);
+        mControllerHandler = new InstrumentedHandler(mControllerHandlerThread.getLooper(),
+                "RecommendationController", messageBudgetMillis);
+        mStartupTrace.record("threads", start);
 
-        WifiManager wifiManager = getSystemService(WifiManager.class);
-        PowerManager powerManager = getSystemService(PowerManager.class);
-        UserManager userManager = getSystemService(UserManager.class);
-        Resources resources = getResources();
-        ContentResolver contentResolver = getContentResolver();
-        mWifiNotificationController = new WifiNotificationController(
-                this, contentResolver, mControllerHandler, mProvider,
-                wifiManager, notificationManager, userManager, new WifiNotificationHelper(this));
-        WifiWakeupNetworkSelector wifiWakeupNetworkSelector =
-                new WifiWakeupNetworkSelector(resources, mProvider);
-        WifiWakeupHelper wifiWakeupHelper = new WifiWakeupHelper(this, resources, mControllerHandler,
-                notificationManager, wifiManager);
-        mWifiWakeupController =
-                new WifiWakeupController(this, getContentResolver(), mControllerHandler, wifiManager,
-                        powerManager, userManager, wifiWakeupNetworkSelector, wifiWakeupHelper);
+        start = SystemClock.elapsedRealtimeNanos();
+        File scoreFile = new File(
+                createDeviceProtectedStorageContext().getFilesDir(), SCORE_FILE_NAME);
+        DefaultNetworkRecommendationProvider.ScoreStorage storage =
+                new DefaultNetworkRecommendationProvider.ScoreStorage(
+                        new ScoreFile(scoreFile),
+                        runnable -> mStorageHandler.postDelayed(
+                                InstrumentedHandler.named("writeScores", runnable),
+                                SCORE_WRITE_DELAY_MS));
+        mScoreStorage = storage;
+        mStartupTrace.record("scoreStorage", start);
+
+        start = SystemClock.elapsedRealtimeNanos();
+        NetworkScoreManager networkScoreManager = getSystemService(NetworkScoreManager.class);
+        long publishWindowMillis = G.Netrec.scorePublishWindowMillis.get();
+        ScorePublisher scorePublisher = new ScorePublisher(networkScoreManager,
+                runnable -> mProviderHandler.postDelayed(
+                        InstrumentedHandler.named("publishScores", runnable),
+                        publishWindowMillis));
+        mScorePublisher = scorePublisher;
+        mProvider = new DefaultNetworkRecommendationProvider(this,
+                new PriorityLaneExecutor(mProviderHandler::post), scorePublisher, storage);
+        mStartupTrace.record("provider", start);
+
+        // Queued ahead of the controllers, so channels exist before any notification is posted.
+        mControllerHandler.post(InstrumentedHandler.named("notificationChannels", () -> {
+            long channelsStart = SystemClock.elapsedRealtimeNanos();
+            NotificationChannelUtil.configureNotificationChannels(
+                    getSystemService(NotificationManager.class), this);
+            mStartupTrace.record("notificationChannels", channelsStart);
+        }));
     }
 
     @Override
     public IBinder onBind(Intent intent) {
-        mWifiWakeupController.start();
-        mWifiNotificationController.start();
+        if (!mBound) {
+            mBound = true;
+            mStartupTrace.mark("firstBind");
+        }
+        mControllerHandler.post(
+                InstrumentedHandler.named("startControllers", this::startControllers));
         return mProvider.getBinder();
     }
 
     @Override
     public boolean onUnbind(Intent intent) {
-        mWifiWakeupController.stop();
-        mWifiNotificationController.stop();
+        mControllerHandler.post(
+                InstrumentedHandler.named("stopControllers", this::stopControllers));
         return super.onUnbind(intent);
     }
 
     @Override
     public void onDestroy() {
-        mProviderHandlerThread.quit();
+        // quitSafely drops delayed messages, so push and write pending changes first.
+        mProviderHandler.post(
+                InstrumentedHandler.named("flushPublishedScores", mScorePublisher::flush));
+        mProviderHandlerThread.quitSafely();
+        mStorageHandler.post(
+                InstrumentedHandler.named("flushScores", mScoreStorage::flushPendingWrite));
+        mStorageHandlerThread.quitSafely();
         super.onDestroy();
     }
 
+    /** Runs on the controller thread. */
+    private void startControllers() {
+        // Only the first start is part of startup; later binds would grow the trace forever.
+        boolean firstStart = mWifiWakeupController == null;
+        if (firstStart) {
+            long start = SystemClock.elapsedRealtimeNanos();
+            createControllers();
+            mStartupTrace.record("createControllers", start);
+        }
+        long start = SystemClock.elapsedRealtimeNanos();
+        mWifiWakeupController.start();
+        mWifiNotificationController.start();
+        if (firstStart) {
+            mStartupTrace.record("startControllers", start);
+        }
+    }
+
+    /** Runs on the controller thread. */
+    private void stopControllers() {
+        if (mWifiWakeupController == null) {
+            return;
+        }
+        mWifiWakeupController.stop();
+        mWifiNotificationController.stop();
+    }
+
+    private void createControllers() {
+        NotificationManager notificationManager = getSystemService(NotificationManager.class);
+        WifiManager wifiManager = getSystemService(WifiManager.class);
+        PowerManager powerManager = getSystemService(PowerManager.class);
+        UserManager userManager = getSystemService(UserManager.class);
+        Resources resources = getResources();
+        ContentResolver contentResolver = getContentResolver();
+        ScanResultHub scanResultHub = new ScanResultHub(this, wifiManager, mControllerHandler);
+        mWifiNotificationController = new WifiNotificationController(
+                this, contentResolver, mControllerHandler, mProvider,
+                wifiManager, notificationManager, userManager, new WifiNotificationHelper(this),
+                scanResultHub);
+        WifiWakeupNetworkSelector wifiWakeupNetworkSelector =
+                new WifiWakeupNetworkSelector(resources, mProvider);
+        WifiWakeupHelper wifiWakeupHelper = new WifiWakeupHelper(this, resources, mControllerHandler,
+                notificationManager, wifiManager);
+        mWifiWakeupController =
+                new WifiWakeupController(this, getContentResolver(), mControllerHandler, wifiManager,
+                        powerManager, userManager, wifiWakeupNetworkSelector, wifiWakeupHelper,
+                        scanResultHub);
+        mScanResultHub = scanResultHub;
+    }
+
     @Override
     protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        mStartupTrace.dump(writer);
         mProvider.dump(fd, writer, args);
-        mWifiNotificationController.dump(fd, writer, args);
-        mWifiWakeupController.dump(fd, writer, args);
+        WifiNotificationController notificationController = mWifiNotificationController;
+        WifiWakeupController wakeupController = mWifiWakeupController;
+        ScanResultHub scanResultHub = mScanResultHub;
+        if (notificationController != null && wakeupController != null
+                && scanResultHub != null) {
+            notificationController.dump(fd, writer, args);
+            wakeupController.dump(fd, writer, args);
+            scanResultHub.dump(writer);
+        } else {
+            writer.println("Controllers not created yet");
+        }
+        mProviderHandler.dump(writer);
+        mStorageHandler.dump(writer);
+        mControllerHandler.dump(writer);
     }
 }
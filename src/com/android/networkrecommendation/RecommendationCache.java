@@ -0,0 +1,166 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.networkrecommendation;
+
+import android.net.RecommendationRequest;
+import android.net.wifi.ScanResult;
+import android.net.wifi.WifiConfiguration;
+import android.support.annotation.Nullable;
+
+import com.android.networkrecommendation.util.BssidUtil;
+import com.android.networkrecommendation.util.ScanResultUtil;
+
+import java.io.PrintWriter;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Remembers the outcome of recent recommendation requests, keyed by a fingerprint of the
+ * request's open scan results and the generation of the scores they were ranked against.
+ *
+ * <p>The fingerprint covers each open network's ssid, bssid, frequency and RSSI rounded down to
+ * a {@link #RSSI_BUCKET_DB} wide bucket, plus the connected network. It is independent of scan
+ * result order. Requests whose scans differ only by small RSSI fluctuations therefore share an
+ * outcome.
+ *
+ * <p>The cache is direct mapped and lock free: slots hold immutable {@link Outcome}s and are
+ * written racily, so a lost write only costs a recomputation.
+ */
+final class RecommendationCache {
+    /** Width of the RSSI buckets used in the fingerprint, in dB. */
+    static final int RSSI_BUCKET_DB = 4;
+
+    /**
+     * Longest an outcome is reused while scores may expire, measured against the storage
+     * expiry cutoff rather than a separate clock read.
+     */
+    private static final long MAX_AGE_MS = TimeUnit.MINUTES.toMillis(1);
+
+    /** Must be a power of two. */
+    private static final int SIZE = 8;
+
+    private final Outcome[] mOutcomes = new Outcome[SIZE];
+    private final AtomicLong mHits = new AtomicLong();
+    private final AtomicLong mMisses = new AtomicLong();
+
+    /**
+     * Returns the outcome previously recorded for this fingerprint against the same storage
+     * generation, or null.
+     *
+     * @param expiryCutoff the storage expiry cutoff the request is being ranked against.
+     */
+    @Nullable
+    Outcome get(long fingerprint, long generation, long expiryCutoff) {
+        Outcome outcome = mOutcomes[slotOf(fingerprint)];
+        if (outcome != null
+                && outcome.mFingerprint == fingerprint
+                && outcome.mGeneration == generation
+                && expiryCutoff - outcome.mExpiryCutoff < MAX_AGE_MS) {
+            mHits.incrementAndGet();
+            return outcome;
+        }
+        mMisses.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * Record the outcome of ranking a request.
+     *
+     * @param recommended the recommended scan result, or null if no network could be recommended.
+     */
+    void put(long fingerprint, long generation, long expiryCutoff,
+            @Nullable ScanResult recommended) {
+        mOutcomes[slotOf(fingerprint)] =
+                new Outcome(
+                        fingerprint,
+                        generation,
+                        expiryCutoff,
+                        recommended != null ? recommended.SSID : null,
+                        recommended != null ? recommended.BSSID : null);
+    }
+
+    void dump(PrintWriter writer) {
+        long hits = mHits.get();
+        long total = hits + mMisses.get();
+        writer.println(
+                "Recommendation cache hits: " + hits + "/" + total
+                        + (total > 0 ? String.format(" (%.1f%%)", 100.0 * hits / total) : ""));
+    }
+
+    /**
+     * Returns a fingerprint of the request's open scan results and connected network. Does not
+     * allocate.
+     */
+    static long fingerprint(RecommendationRequest request) {
+        long fingerprint = 0;
+        int count = 0;
+        ScanResult[] results = request.getScanResults();
+        if (results != null) {
+            for (int i = 0; i < results.length; i++) {
+                ScanResult scanResult = results[i];
+                if (!ScanResultUtil.isScanResultForOpenEssNetwork(scanResult)) {
+                    continue;
+                }
+                long bssid = BssidUtil.pack(scanResult.BSSID);
+                int ssidHash = scanResult.SSID != null ? scanResult.SSID.hashCode() : 0;
+                int rssiBucket = Math.floorDiv(scanResult.level, RSSI_BUCKET_DB);
+                // The frequency matters since scoring favors 5GHz candidates.
+                long signal = ((long) rssiBucket << 32) | (scanResult.frequency & 0xffffffffL);
+                // Summing mixed entries keeps the fingerprint independent of scan order.
+                fingerprint += mix(mix(bssid ^ ((long) ssidHash << 16)) + signal);
+                count++;
+            }
+        }
+        WifiConfiguration connectedConfig = request.getConnectedConfig();
+        if (connectedConfig != null) {
+            int connectedHash = connectedConfig.SSID != null ? connectedConfig.SSID.hashCode() : 0;
+            fingerprint ^= mix(BssidUtil.pack(connectedConfig.BSSID) + connectedHash);
+        }
+        return mix(fingerprint + count);
+    }
+
+    private static int slotOf(long fingerprint) {
+        return (int) (fingerprint ^ (fingerprint >>> 32)) & (SIZE - 1);
+    }
+
+    private static long mix(long value) {
+        value ^= value >>> 33;
+        value *= 0xff51afd7ed558ccdL;
+        value ^= value >>> 33;
+        value *= 0xc4ceb9fe1a85ec53L;
+        value ^= value >>> 33;
+        return value;
+    }
+
+    /** The recorded outcome of one request. */
+    static final class Outcome {
+        private final long mFingerprint;
+        private final long mGeneration;
+        private final long mExpiryCutoff;
+        /** Ssid of the recommended scan result, or null if there was no recommendation. */
+        @Nullable final String mSsid;
+        @Nullable final String mBssid;
+
+        private Outcome(long fingerprint, long generation, long expiryCutoff,
+                @Nullable String ssid, @Nullable String bssid) {
+            mFingerprint = fingerprint;
+            mGeneration = generation;
+            mExpiryCutoff = expiryCutoff;
+            mSsid = ssid;
+            mBssid = bssid;
+        }
+    }
+}
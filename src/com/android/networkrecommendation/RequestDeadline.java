@@ -0,0 +1,71 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.networkrecommendation;
+
+import android.os.SystemClock;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * When the ranking of an asynchronous recommendation request should stop: once its deadline is
+ * reached, or once a newer request has made it stale. Ranking polls {@link #shouldStop} and
+ * returns the best candidate found so far.
+ *
+ * <p>Safe to poll from the several threads ranking one request in parallel.
+ */
+final class RequestDeadline {
+    static final int NOT_STOPPED = 0;
+    static final int EXPIRED = 1;
+    static final int SUPERSEDED = 2;
+
+    private final long mDeadlineNanos;
+    private final long mGeneration;
+    private final AtomicLong mLatestGeneration;
+    private volatile int mStopReason = NOT_STOPPED;
+
+    /**
+     * Create the deadline of a new request, superseding every request previously created with
+     * the same generation counter.
+     *
+     * @param deadlineNanos the {@link SystemClock#elapsedRealtimeNanos} at which to stop.
+     */
+    RequestDeadline(long deadlineNanos, AtomicLong latestGeneration) {
+        mDeadlineNanos = deadlineNanos;
+        mLatestGeneration = latestGeneration;
+        mGeneration = latestGeneration.incrementAndGet();
+    }
+
+    /** Returns true if ranking should stop now. Once true, stays true. */
+    boolean shouldStop() {
+        if (mStopReason != NOT_STOPPED) {
+            return true;
+        }
+        if (mLatestGeneration.get() != mGeneration) {
+            mStopReason = SUPERSEDED;
+            return true;
+        }
+        if (SystemClock.elapsedRealtimeNanos() >= mDeadlineNanos) {
+            mStopReason = EXPIRED;
+            return true;
+        }
+        return false;
+    }
+
+    /** Returns why ranking was stopped early, or {@link #NOT_STOPPED}. */
+    int getStopReason() {
+        return mStopReason;
+    }
+}
@@ -0,0 +1,209 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.networkrecommendation;
+
+import android.net.RssiCurve;
+import android.net.ScoredNetwork;
+import android.net.WifiKey;
+import android.support.annotation.Nullable;
+
+import com.android.networkrecommendation.storage.ScoreEntry;
+import com.android.networkrecommendation.util.BssidUtil;
+
+import java.util.Arrays;
+
+/**
+ * Which stored scores a dump prints. Parsed from dumpsys arguments of the form:
+ *
+ * <pre>
+ * scores [ssid=PREFIX] [bssid=MAC] [badge=SD|HD|4K|any|none] [metered=0|1|true|false]
+ *        [offset=N] [limit=N] [summary]
+ * </pre>
+ *
+ * <p>The SSID prefix is matched against the unquoted SSID. offset and limit page through the
+ * matching scores in storage order, in memory scores first and then persisted ones, and summary
+ * prints only counts.
+ */
+final class ScoreDumpOptions {
+    static final String BADGE_ANY = "any";
+    static final String BADGE_NONE = "none";
+    static final String BADGE_CUSTOM = "custom";
+
+    /** Printed when the arguments cannot be parsed. */
+    static final String USAGE =
+            "Usage: scores [ssid=PREFIX] [bssid=MAC] [badge=SD|HD|4K|any|none]"
+                    + " [metered=0|1|true|false] [offset=N] [limit=N] [summary]";
+
+    /** Prints every stored score. */
+    static final ScoreDumpOptions ALL = new ScoreDumpOptions();
+
+    private @Nullable String mSsidPrefix;
+    private long mBssid = BssidUtil.INVALID;
+    private @Nullable String mBadge;
+    private @Nullable Boolean mMetered;
+    private int mOffset;
+    private int mLimit = Integer.MAX_VALUE;
+    private boolean mSummary;
+
+    /**
+     * Parse options from dumpsys arguments.
+     *
+     * @throws IllegalArgumentException if an argument is not understood.
+     */
+    static ScoreDumpOptions parse(String[] args, int from) {
+        ScoreDumpOptions options = new ScoreDumpOptions();
+        for (int i = from; i < args.length; i++) {
+            String arg = args[i];
+            if ("summary".equals(arg)) {
+                options.mSummary = true;
+                continue;
+            }
+            int equals = arg.indexOf('=');
+            if (equals < 0) {
+                throw new IllegalArgumentException("Expected name=value: " + arg);
+            }
+            String name = arg.substring(0, equals);
+            String value = arg.substring(equals + 1);
+            switch (name) {
+                case "ssid":
+                    options.mSsidPrefix = unquote(value);
+                    break;
+                case "bssid":
+                    options.mBssid = BssidUtil.pack(value);
+                    if (options.mBssid == BssidUtil.INVALID) {
+                        throw new IllegalArgumentException("Bad bssid: " + value);
+                    }
+                    break;
+                case "badge":
+                    if (!BADGE_ANY.equalsIgnoreCase(value)) {
+                        try {
+                            ScoreParser.parseBadge(value, 0, value.length());
+                        } catch (ScoreParseException e) {
+                            throw new IllegalArgumentException("Bad badge: " + value);
+                        }
+                    }
+                    options.mBadge = value;
+                    break;
+                case "metered":
+                    options.mMetered = parseBoolean(value);
+                    break;
+                case "offset":
+                    options.mOffset = parseCount(value);
+                    break;
+                case "limit":
+                    options.mLimit = parseCount(value);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option: " + name);
+            }
+        }
+        return options;
+    }
+
+    /** Number of matching scores to skip before printing. */
+    int getOffset() {
+        return mOffset;
+    }
+
+    /** Maximum number of matching scores to print. */
+    int getLimit() {
+        return mLimit;
+    }
+
+    /** Whether to print counts only. */
+    boolean isSummary() {
+        return mSummary;
+    }
+
+    /** Returns true if the score passes every filter. */
+    boolean matches(ScoreEntry scoreEntry) {
+        ScoredNetwork scoredNetwork = scoreEntry.scoredNetwork;
+        WifiKey wifiKey = scoredNetwork.networkKey.wifiKey;
+        if (mSsidPrefix != null && !unquote(wifiKey.ssid).startsWith(mSsidPrefix)) {
+            return false;
+        }
+        if (mBssid != BssidUtil.INVALID && BssidUtil.pack(wifiKey.bssid) != mBssid) {
+            return false;
+        }
+        if (mMetered != null && scoredNetwork.meteredHint != mMetered) {
+            return false;
+        }
+        if (mBadge != null) {
+            String badge = badgeOf(scoredNetwork);
+            if (BADGE_ANY.equalsIgnoreCase(mBadge)) {
+                return !BADGE_NONE.equals(badge);
+            }
+            return mBadge.equalsIgnoreCase(badge);
+        }
+        return true;
+    }
+
+    /** Returns the name of a score's badge: SD, HD, 4K, {@link #BADGE_CUSTOM} or none. */
+    static String badgeOf(ScoredNetwork scoredNetwork) {
+        if (scoredNetwork.attributes == null) {
+            return BADGE_NONE;
+        }
+        RssiCurve badgeCurve =
+                scoredNetwork.attributes.getParcelable(ScoredNetwork.ATTRIBUTES_KEY_BADGING_CURVE);
+        if (badgeCurve == null) {
+            return BADGE_NONE;
+        }
+        // Decoded scores hold copies of the curves, so compare by value.
+        if (curveEquals(badgeCurve, DefaultNetworkRecommendationProvider.BADGE_CURVE_SD)) {
+            return "SD";
+        } else if (curveEquals(badgeCurve, DefaultNetworkRecommendationProvider.BADGE_CURVE_HD)) {
+            return "HD";
+        } else if (curveEquals(badgeCurve, DefaultNetworkRecommendationProvider.BADGE_CURVE_4K)) {
+            return "4K";
+        }
+        return BADGE_CUSTOM;
+    }
+
+    private static boolean curveEquals(RssiCurve a, RssiCurve b) {
+        return a.start == b.start
+                && a.bucketWidth == b.bucketWidth
+                && a.activeNetworkRssiBoost == b.activeNetworkRssiBoost
+                && Arrays.equals(a.rssiBuckets, b.rssiBuckets);
+    }
+
+    private static String unquote(String ssid) {
+        if (ssid.length() >= 2 && ssid.startsWith("\"") && ssid.endsWith("\"")) {
+            return ssid.substring(1, ssid.length() - 1);
+        }
+        return ssid;
+    }
+
+    private static boolean parseBoolean(String value) {
+        switch (value) {
+            case "1":
+            case "true":
+                return true;
+            case "0":
+            case "false":
+                return false;
+            default:
+                throw new IllegalArgumentException("Bad boolean: " + value);
+        }
+    }
+
+    private static int parseCount(String value) {
+        int count = Integer.parseInt(value);
+        if (count < 0) {
+            throw new IllegalArgumentException("Negative count: " + value);
+        }
+        return count;
+    }
+}
@@ -0,0 +1,229 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.networkrecommendation;
+
+import android.net.RssiCurve;
+import android.net.ScoredNetwork;
+import android.net.WifiKey;
+import android.os.SystemClock;
+
+import com.android.networkrecommendation.DefaultNetworkRecommendationProvider.ScoreStorage;
+import com.android.networkrecommendation.config.Csv;
+import com.android.networkrecommendation.storage.ScoreEntry;
+import com.android.networkrecommendation.storage.ScoreFile;
+import com.android.networkrecommendation.util.Blog;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Bulk loads scores from a file into {@link ScoreStorage}, publishing them in a single swap.
+ *
+ * <p>Two formats are accepted. A {@link ScoreFile}, as written by storage, is memory mapped and
+ * decoded directly. Anything else is streamed as CSV, one network per record:
+ *
+ * <pre>
+ * ssid,bssid,metered,captivePortal,badge,bucketWidth,score,score,score,...
+ * </pre>
+ *
+ * <p>The SSID need not be quoted for the {@link WifiKey}; CSV quoting applies as usual. metered
+ * and captivePortal are 1 or 0, and captivePortal and badge (SD, HD or 4K) may be left empty.
+ * Fields are parsed by {@link ScoreParser}. The scores form an {@link RssiCurve} starting at
+ * {@link DefaultNetworkRecommendationProvider#CONSTANT_CURVE_START}. Blank records and records
+ * starting with '#' are skipped; malformed records are counted and skipped.
+ */
+final class ScoreImporter {
+    private static final String TAG = "ScoreImporter";
+
+    private static final int FIELD_SSID = 0;
+    private static final int FIELD_BSSID = 1;
+    private static final int FIELD_METERED = 2;
+    private static final int FIELD_CAPTIVE_PORTAL = 3;
+    private static final int FIELD_BADGE = 4;
+    private static final int FIELD_BUCKET_WIDTH = 5;
+    private static final int FIELD_FIRST_BUCKET = 6;
+
+    private static final int MAX_LOGGED_ERRORS = 10;
+
+    /** The outcome of an import. */
+    static final class Result {
+        /** Number of scores read from the file. */
+        final int mRead;
+        /** Number of CSV records which could not be parsed. */
+        final int mMalformed;
+        /** Number of scores admitted to storage. */
+        final int mAdmitted;
+        final long mElapsedMillis;
+
+        Result(int read, int malformed, int admitted, long elapsedMillis) {
+            mRead = read;
+            mMalformed = malformed;
+            mAdmitted = admitted;
+            mElapsedMillis = elapsedMillis;
+        }
+
+        @Override
+        public String toString() {
+            return "Imported " + mAdmitted + " of " + mRead + " scores (" + mMalformed
+                    + " malformed) in " + mElapsedMillis + "ms, "
+                    + mRead * 1000L / Math.max(1, mElapsedMillis) + " scores/s";
+        }
+    }
+
+    /** Import every score in a file into storage. */
+    static Result importFile(File file, ScoreStorage storage) throws IOException {
+        final long start = SystemClock.elapsedRealtime();
+        boolean isScoreFile;
+        try (InputStream in = new FileInputStream(file)) {
+            isScoreFile = ScoreFile.hasScoreFileMagic(in);
+        }
+
+        List<ScoredNetwork> scoredNetworks;
+        int malformed = 0;
+        if (isScoreFile) {
+            // Not through a ScoreFile, whose AtomicFile would act on a backup next to the file.
+            ScoreFile.Mapping mapping = ScoreFile.map(file);
+            if (mapping == null) {
+                throw new IOException("Unreadable score file: " + file);
+            }
+            List<ScoreEntry> scoreEntries = mapping.values();
+            scoredNetworks = new ArrayList<>(scoreEntries.size());
+            for (int i = 0; i < scoreEntries.size(); i++) {
+                scoredNetworks.add(scoreEntries.get(i).scoredNetwork);
+            }
+        } else {
+            scoredNetworks = new ArrayList<>();
+            try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+                malformed = readCsv(reader, scoredNetworks);
+            }
+        }
+
+        int admitted = storage.addScores(scoredNetworks);
+        Result result = new Result(scoredNetworks.size(), malformed, admitted,
+                SystemClock.elapsedRealtime() - start);
+        Blog.i(TAG, "%s from %s", result, file);
+        return result;
+    }
+
+    /**
+     * Parse CSV records into scores. The first few malformed records are logged.
+     *
+     * @return the number of malformed records skipped.
+     */
+    static int readCsv(BufferedReader reader, List<ScoredNetwork> out) throws IOException {
+        List<String> fields = new ArrayList<>();
+        List<Integer> starts = new ArrayList<>();
+        int record = 0;
+        int malformed = 0;
+        while (true) {
+            fields.clear();
+            starts.clear();
+            if (!Csv.parseLine(reader, fields, starts)) {
+                return malformed;
+            }
+            record++;
+            if (fields.isEmpty()
+                    || (fields.size() == 1 && fields.get(0).isEmpty())
+                    || fields.get(0).startsWith("#")) {
+                continue;
+            }
+            try {
+                out.add(parseRecord(fields, starts));
+            } catch (ScoreParseException e) {
+                if (malformed++ < MAX_LOGGED_ERRORS) {
+                    Blog.w(TAG, "Skipping record %d: %s", record, e.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * Parse one record. Errors carry their offset in the record text.
+     *
+     * @param starts where each field starts in the record, as noted by {@link Csv#parseLine}.
+     */
+    private static ScoredNetwork parseRecord(List<String> fields, List<Integer> starts)
+            throws ScoreParseException {
+        if (fields.size() <= FIELD_FIRST_BUCKET) {
+            throw new ScoreParseException("Expected at least " + (FIELD_FIRST_BUCKET + 1)
+                    + " fields, got " + fields.size(), 0);
+        }
+        String ssid = fields.get(FIELD_SSID);
+        if (!ssid.startsWith("\"")) {
+            ssid = '"' + ssid + '"';
+        }
+
+        int bucketWidth = parseField(fields, starts, FIELD_BUCKET_WIDTH, 1, Integer.MAX_VALUE);
+        byte[] rssiBuckets = new byte[fields.size() - FIELD_FIRST_BUCKET];
+        for (int i = 0; i < rssiBuckets.length; i++) {
+            rssiBuckets[i] = (byte) parseField(
+                    fields, starts, FIELD_FIRST_BUCKET + i, Byte.MIN_VALUE, Byte.MAX_VALUE);
+        }
+        RssiCurve rssiCurve = new RssiCurve(
+                DefaultNetworkRecommendationProvider.CONSTANT_CURVE_START, bucketWidth,
+                rssiBuckets, 0 /* defaultActiveNetworkRssiBoost */);
+
+        String metered = fields.get(FIELD_METERED);
+        String captivePortal = fields.get(FIELD_CAPTIVE_PORTAL);
+        String badge = fields.get(FIELD_BADGE);
+        int field = FIELD_METERED;
+        boolean meteredHint;
+        Boolean hasCaptivePortal;
+        RssiCurve badgeCurve;
+        try {
+            meteredHint =
+                    Boolean.TRUE.equals(ScoreParser.parseFlag(metered, 0, metered.length()));
+            field = FIELD_CAPTIVE_PORTAL;
+            hasCaptivePortal = ScoreParser.parseFlag(captivePortal, 0, captivePortal.length());
+            field = FIELD_BADGE;
+            badgeCurve = ScoreParser.parseBadge(badge, 0, badge.length());
+        } catch (ScoreParseException e) {
+            throw fieldError(starts, field, e);
+        }
+        // Offsets from create are already in the record.
+        return ScoreParser.create(ssid, fields.get(FIELD_BSSID), starts.get(FIELD_BSSID),
+                rssiCurve, meteredHint, hasCaptivePortal, badgeCurve);
+    }
+
+    private static int parseField(List<String> fields, List<Integer> starts, int field, int min,
+            int max) throws ScoreParseException {
+        String value = fields.get(field);
+        try {
+            return ScoreParser.parseInt(value, 0, value.length(), min, max);
+        } catch (ScoreParseException e) {
+            throw fieldError(starts, field, e);
+        }
+    }
+
+    /**
+     * Fields are parsed on their own, so move the error's offset from the field to the record.
+     * Exact unless the field contains doubled quotes before the error.
+     */
+    private static ScoreParseException fieldError(
+            List<Integer> starts, int field, ScoreParseException e) {
+        return new ScoreParseException("Field " + field + ": " + e.getReason(),
+                starts.get(field) + e.getErrorOffset());
+    }
+
+    // Can't instantiate.
+    private ScoreImporter() {}
+}
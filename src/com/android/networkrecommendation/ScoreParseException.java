@@ -0,0 +1,38 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.networkrecommendation;
+
+/** Thrown by {@link ScoreParser} when a score is malformed. */
+final class ScoreParseException extends Exception {
+    private final String mReason;
+    private final int mErrorOffset;
+
+    ScoreParseException(String reason, int errorOffset) {
+        super(reason + " at offset " + errorOffset);
+        mReason = reason;
+        mErrorOffset = errorOffset;
+    }
+
+    /** Returns the message without the offset. */
+    String getReason() {
+        return mReason;
+    }
+
+    /** Returns the offset into the parsed text at which the error was found. */
+    int getErrorOffset() {
+        return mErrorOffset;
+    }
+}
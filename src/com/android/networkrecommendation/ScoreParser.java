@@ -0,0 +1,230 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.networkrecommendation;
+
+import android.net.NetworkKey;
+import android.net.RssiCurve;
+import android.net.ScoredNetwork;
+import android.net.WifiKey;
+import android.os.Bundle;
+import android.support.annotation.Nullable;
+
+import com.android.networkrecommendation.util.BssidUtil;
+
+/**
+ * Parses scores in the format of the addScore dumpsys command, described in {@link
+ * DefaultNetworkRecommendationProvider}:
+ *
+ * <pre>
+ * "Quoted SSID",bssid|bucketWidth,score,score,...|metered|captivePortal|BADGE
+ * </pre>
+ *
+ * <p>The text is parsed in a single pass by index, without regular expressions, intermediate
+ * strings for numbers or boxing. Trailing fields may be omitted. The field parsers are shared
+ * with {@link ScoreImporter}.
+ */
+final class ScoreParser {
+    private static final char FIELD_SEPARATOR = '|';
+    private static final char VALUE_SEPARATOR = ',';
+
+    /** Larger than any valid bucket width or score, small enough never to overflow. */
+    private static final int MAX_MAGNITUDE = 1 << 24;
+
+    /** Parse a score. */
+    static ScoredNetwork parse(String text) throws ScoreParseException {
+        final int length = text.length();
+
+        int end = fieldEnd(text, 0);
+        int comma = text.lastIndexOf(VALUE_SEPARATOR, end - 1);
+        if (comma < 0) {
+            throw new ScoreParseException("Expected \"ssid\",bssid", 0);
+        }
+        String ssid = text.substring(0, comma);
+        String bssid = text.substring(comma + 1, end);
+
+        RssiCurve rssiCurve = null;
+        boolean meteredHint = false;
+        Boolean captivePortal = null;
+        RssiCurve badgeCurve = null;
+        int field = 1;
+        int start = end + 1;
+        while (start <= length) {
+            end = fieldEnd(text, start);
+            switch (field++) {
+                case 1:
+                    rssiCurve = parseCurve(text, start, end);
+                    break;
+                case 2:
+                    meteredHint = Boolean.TRUE.equals(parseFlag(text, start, end));
+                    break;
+                case 3:
+                    captivePortal = parseFlag(text, start, end);
+                    break;
+                case 4:
+                    badgeCurve = parseBadge(text, start, end);
+                    break;
+                default:
+                    throw new ScoreParseException("Unexpected field", start);
+            }
+            start = end + 1;
+        }
+        return create(ssid, bssid, comma + 1, rssiCurve, meteredHint, captivePortal, badgeCurve);
+    }
+
+    /**
+     * Create a score from parsed fields.
+     *
+     * @param bssidOffset where the bssid starts in the parsed text, for errors.
+     */
+    static ScoredNetwork create(String ssid, String bssid, int bssidOffset,
+            @Nullable RssiCurve rssiCurve, boolean meteredHint, @Nullable Boolean captivePortal,
+            @Nullable RssiCurve badgeCurve) throws ScoreParseException {
+        if (BssidUtil.pack(bssid) == BssidUtil.INVALID) {
+            throw new ScoreParseException("Invalid bssid \"" + bssid + "\"", bssidOffset);
+        }
+        NetworkKey networkKey;
+        try {
+            networkKey = new NetworkKey(new WifiKey(ssid, bssid));
+        } catch (IllegalArgumentException e) {
+            throw new ScoreParseException("Invalid ssid " + ssid, 0);
+        }
+        if (captivePortal == null && badgeCurve == null) {
+            return new ScoredNetwork(networkKey, rssiCurve, meteredHint);
+        }
+        Bundle attributes = new Bundle();
+        if (captivePortal != null) {
+            attributes.putBoolean(ScoredNetwork.ATTRIBUTES_KEY_HAS_CAPTIVE_PORTAL, captivePortal);
+        }
+        if (badgeCurve != null) {
+            attributes.putParcelable(ScoredNetwork.ATTRIBUTES_KEY_BADGING_CURVE, badgeCurve);
+        }
+        return new ScoredNetwork(networkKey, rssiCurve, meteredHint, attributes);
+    }
+
+    /** Parse "bucketWidth,score,score,...", or nothing for no curve. */
+    @Nullable
+    static RssiCurve parseCurve(CharSequence text, int start, int end)
+            throws ScoreParseException {
+        if (start == end) {
+            return null;
+        }
+        int count = 0;
+        for (int i = start; i < end; i++) {
+            if (text.charAt(i) == VALUE_SEPARATOR) {
+                count++;
+            }
+        }
+        if (count == 0) {
+            throw new ScoreParseException("Expected scores after the bucket width", end);
+        }
+        int valueEnd = valueEnd(text, start, end);
+        int bucketWidth = parseInt(text, start, valueEnd, 1, Integer.MAX_VALUE);
+        byte[] rssiBuckets = new byte[count];
+        for (int i = 0; i < count; i++) {
+            start = valueEnd + 1;
+            valueEnd = valueEnd(text, start, end);
+            rssiBuckets[i] = (byte) parseInt(text, start, valueEnd, Byte.MIN_VALUE, Byte.MAX_VALUE);
+        }
+        return new RssiCurve(DefaultNetworkRecommendationProvider.CONSTANT_CURVE_START,
+                bucketWidth, rssiBuckets, 0 /* defaultActiveNetworkRssiBoost */);
+    }
+
+    /** Parse "1" or "0", or nothing for null. */
+    @Nullable
+    static Boolean parseFlag(CharSequence text, int start, int end) throws ScoreParseException {
+        if (start == end) {
+            return null;
+        }
+        if (end - start == 1) {
+            char c = text.charAt(start);
+            if (c == '1') {
+                return Boolean.TRUE;
+            } else if (c == '0') {
+                return Boolean.FALSE;
+            }
+        }
+        throw new ScoreParseException("Expected 1 or 0", start);
+    }
+
+    /** Parse a badge name, SD, HD, 4K or NONE ignoring case, or nothing for no badge. */
+    @Nullable
+    static RssiCurve parseBadge(String text, int start, int end) throws ScoreParseException {
+        if (start == end || regionEquals(text, start, end, "NONE")) {
+            return null;
+        } else if (regionEquals(text, start, end, "SD")) {
+            return DefaultNetworkRecommendationProvider.BADGE_CURVE_SD;
+        } else if (regionEquals(text, start, end, "HD")) {
+            return DefaultNetworkRecommendationProvider.BADGE_CURVE_HD;
+        } else if (regionEquals(text, start, end, "4K")) {
+            return DefaultNetworkRecommendationProvider.BADGE_CURVE_4K;
+        }
+        throw new ScoreParseException("Expected NONE, SD, HD or 4K", start);
+    }
+
+    /** Parse a decimal integer within [min, max]. */
+    static int parseInt(CharSequence text, int start, int end, int min, int max)
+            throws ScoreParseException {
+        if (start == end) {
+            throw new ScoreParseException("Expected a number", start);
+        }
+        int i = start;
+        boolean negative = text.charAt(i) == '-';
+        if (negative && ++i == end) {
+            throw new ScoreParseException("Expected a digit", i);
+        }
+        int value = 0;
+        for (; i < end; i++) {
+            int digit = text.charAt(i) - '0';
+            if (digit < 0 || digit > 9) {
+                throw new ScoreParseException("Expected a digit", i);
+            }
+            value = value * 10 + digit;
+            if (value > MAX_MAGNITUDE) {
+                throw new ScoreParseException("Number out of range", start);
+            }
+        }
+        if (negative) {
+            value = -value;
+        }
+        if (value < min || value > max) {
+            throw new ScoreParseException(
+                    "Number " + value + " outside [" + min + ", " + max + "]", start);
+        }
+        return value;
+    }
+
+    private static int fieldEnd(String text, int start) {
+        int end = text.indexOf(FIELD_SEPARATOR, start);
+        return end < 0 ? text.length() : end;
+    }
+
+    private static int valueEnd(CharSequence text, int start, int end) {
+        for (int i = start; i < end; i++) {
+            if (text.charAt(i) == VALUE_SEPARATOR) {
+                return i;
+            }
+        }
+        return end;
+    }
+
+    private static boolean regionEquals(String text, int start, int end, String expected) {
+        return end - start == expected.length()
+                && text.regionMatches(true, start, expected, 0, expected.length());
+    }
+
+    // Can't instantiate.
+    private ScoreParser() {}
+}
@@ -0,0 +1,266 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.networkrecommendation;
+
+import android.net.NetworkKey;
+import android.net.NetworkScoreManager;
+import android.net.RssiCurve;
+import android.net.ScoredNetwork;
+import android.os.Bundle;
+import android.os.SystemClock;
+
+import com.android.networkrecommendation.config.G;
+import com.android.networkrecommendation.util.Blog;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.Executor;
+
+import javax.annotation.concurrent.GuardedBy;
+
+/**
+ * Pushes scores to {@link NetworkScoreManager}, coalescing updates.
+ *
+ * <p>Every {@link NetworkScoreManager#updateScores} call is a binder transaction into the system
+ * server. Scores published while a push is pending are merged into it, the latest score for each
+ * {@link NetworkKey} winning, and pushed in a single call once the flush executor runs.
+ *
+ * <p>A content hash of the last score pushed for each key is kept, and scores identical to it are
+ * not pushed again until {@link G.Netrec#scoreRepushIntervalMillis} has passed, which bounds how
+ * long the framework can go without a score it has dropped from its own cache.
+ */
+final class ScorePublisher {
+    private static final String TAG = "ScorePublisher";
+
+    /** Batch sizes are reported in power of two buckets: 1, 2-3, 4-7, ... */
+    private static final int BATCH_SIZE_BUCKETS = 10;
+
+    /** Maximum number of keys whose last pushed score is remembered. */
+    private static final int MAX_TRACKED_KEYS = 4096;
+
+    private final NetworkScoreManager mScoreManager;
+    private final Executor mFlushExecutor;
+    private final long mRepushIntervalMillis;
+
+    private final Object mLock = new Object();
+    @GuardedBy("mLock")
+    private final LinkedHashMap<NetworkKey, ScoredNetwork> mPending = new LinkedHashMap<>();
+    @GuardedBy("mLock")
+    private boolean mFlushScheduled;
+    @GuardedBy("mLock")
+    private long mPublishedCount;
+    @GuardedBy("mLock")
+    private long mCoalescedCount;
+    @GuardedBy("mLock")
+    private final long[] mBatchSizeCounts = new long[BATCH_SIZE_BUCKETS];
+    /** The last score pushed for each key, least recently used first. */
+    @GuardedBy("mLock")
+    private final LinkedHashMap<NetworkKey, Pushed> mPushed =
+            new LinkedHashMap<NetworkKey, Pushed>(16, 0.75f, true /* accessOrder */) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<NetworkKey, Pushed> eldest) {
+                    return size() > MAX_TRACKED_KEYS;
+                }
+            };
+    /** Incremented by every {@link #clearScores}, so that a flush racing it can tell. */
+    @GuardedBy("mLock")
+    private int mClearCount;
+    @GuardedBy("mLock")
+    private long mSuppressedCount;
+    @GuardedBy("mLock")
+    private long mSuppressedEmptyCount;
+
+    /**
+     * @param flushExecutor the executor on which pending scores are pushed. It should delay
+     *     execution by the coalescing window; a direct executor pushes every publication at once.
+     */
+    ScorePublisher(NetworkScoreManager scoreManager, Executor flushExecutor) {
+        mScoreManager = scoreManager;
+        mFlushExecutor = flushExecutor;
+        mRepushIntervalMillis = G.Netrec.scoreRepushIntervalMillis.get();
+    }
+
+    /** Queue scores to be pushed with the next flush. */
+    void publish(ScoredNetwork[] scoredNetworks) {
+        if (scoredNetworks.length == 0) {
+            return;
+        }
+        synchronized (mLock) {
+            for (ScoredNetwork scoredNetwork : scoredNetworks) {
+                if (mPending.put(scoredNetwork.networkKey, scoredNetwork) != null) {
+                    mCoalescedCount++;
+                }
+            }
+            mPublishedCount += scoredNetworks.length;
+            if (mFlushScheduled) {
+                return;
+            }
+            mFlushScheduled = true;
+        }
+        mFlushExecutor.execute(this::flush);
+    }
+
+    /** Push all pending scores that differ from what was last pushed. */
+    void flush() {
+        final long now = SystemClock.elapsedRealtime();
+        List<ScoredNetwork> changed = new ArrayList<>();
+        List<Pushed> pushed = new ArrayList<>();
+        final int clearCount;
+        synchronized (mLock) {
+            clearCount = mClearCount;
+            mFlushScheduled = false;
+            for (ScoredNetwork scoredNetwork : mPending.values()) {
+                long hash = contentHash(scoredNetwork);
+                Pushed last = mPushed.get(scoredNetwork.networkKey);
+                if (last != null
+                        && last.mHash == hash
+                        && now - last.mElapsedMillis < mRepushIntervalMillis) {
+                    mSuppressedCount++;
+                    if (scoredNetwork.rssiCurve == null) {
+                        mSuppressedEmptyCount++;
+                    }
+                    continue;
+                }
+                changed.add(scoredNetwork);
+                pushed.add(new Pushed(scoredNetwork.networkKey, hash, now));
+            }
+            mPending.clear();
+            if (changed.isEmpty()) {
+                return;
+            }
+            mBatchSizeCounts[bucketOf(changed.size())]++;
+        }
+        // Depending on races, etc, we might be alive when not the active scorer. Safely catch
+        // and ignore security exceptions
+        try {
+            mScoreManager.updateScores(changed.toArray(new ScoredNetwork[changed.size()]));
+        } catch (SecurityException e) {
+            Blog.w(TAG, "Tried to update scores when not the active scorer.");
+            return;
+        }
+        synchronized (mLock) {
+            // A clear while pushing may have dropped these scores from the framework, so don't
+            // suppress them the next time they are published.
+            if (clearCount != mClearCount) {
+                return;
+            }
+            for (int i = 0; i < pushed.size(); i++) {
+                mPushed.put(pushed.get(i).mNetworkKey, pushed.get(i));
+            }
+        }
+    }
+
+    /** Drop pending scores and clear every score previously pushed. */
+    void clearScores() {
+        synchronized (mLock) {
+            mPending.clear();
+            mPushed.clear();
+            mClearCount++;
+        }
+        // Depending on races, etc, we might be alive when not the active scorer. Safely catch
+        // and ignore security exceptions
+        try {
+            mScoreManager.clearScores();
+        } catch (SecurityException e) {
+            Blog.w(TAG, "Tried to update scores when not the active scorer.");
+        }
+    }
+
+    void dump(PrintWriter writer) {
+        synchronized (mLock) {
+            writer.println("Scores published: " + mPublishedCount
+                    + ", coalesced: " + mCoalescedCount + ", pending: " + mPending.size());
+            writer.println("Unchanged scores suppressed: " + mSuppressedCount
+                    + " (empty: " + mSuppressedEmptyCount + "), tracked: " + mPushed.size());
+            StringBuilder sb = new StringBuilder("Score push batch sizes:");
+            for (int i = 0; i < BATCH_SIZE_BUCKETS; i++) {
+                if (mBatchSizeCounts[i] == 0) {
+                    continue;
+                }
+                sb.append(' ').append(1 << i);
+                if (i == BATCH_SIZE_BUCKETS - 1) {
+                    sb.append('+');
+                } else if (i > 0) {
+                    sb.append('-').append((1 << (i + 1)) - 1);
+                }
+                sb.append('=').append(mBatchSizeCounts[i]);
+            }
+            writer.println(sb);
+        }
+    }
+
+    /**
+     * Returns a hash of everything the framework sees of a score. {@link ScoredNetwork#hashCode}
+     * is not suitable as it hashes the attributes {@link Bundle} by identity.
+     */
+    private static long contentHash(ScoredNetwork scoredNetwork) {
+        long hash = scoredNetwork.networkKey.hashCode();
+        hash = hash * 31 + hashCurve(scoredNetwork.rssiCurve);
+        hash = hash * 31 + (scoredNetwork.meteredHint ? 1 : 0);
+        Bundle attributes = scoredNetwork.attributes;
+        if (attributes != null) {
+            // Order independent, as bundles do not order their keys.
+            long attributesHash = 0;
+            for (String key : attributes.keySet()) {
+                Object value = attributes.get(key);
+                long valueHash = value instanceof RssiCurve
+                        ? hashCurve((RssiCurve) value)
+                        : Objects.hashCode(value);
+                attributesHash += mix(key.hashCode() * 31L + valueHash);
+            }
+            hash = hash * 31 + attributesHash;
+        }
+        return mix(hash);
+    }
+
+    private static long hashCurve(RssiCurve curve) {
+        if (curve == null) {
+            return 0;
+        }
+        long hash = curve.start;
+        hash = hash * 31 + curve.bucketWidth;
+        hash = hash * 31 + curve.activeNetworkRssiBoost;
+        return hash * 31 + Arrays.hashCode(curve.rssiBuckets);
+    }
+
+    /** Spreads the bits of a hash across the whole long, as in splitmix64. */
+    private static long mix(long hash) {
+        hash = (hash ^ (hash >>> 30)) * 0xbf58476d1ce4e5b9L;
+        hash = (hash ^ (hash >>> 27)) * 0x94d049bb133111ebL;
+        return hash ^ (hash >>> 31);
+    }
+
+    private static int bucketOf(int batchSize) {
+        return Math.min(31 - Integer.numberOfLeadingZeros(batchSize), BATCH_SIZE_BUCKETS - 1);
+    }
+
+    private static final class Pushed {
+        final NetworkKey mNetworkKey;
+        final long mHash;
+        final long mElapsedMillis;
+
+        Pushed(NetworkKey networkKey, long hash, long elapsedMillis) {
+            mNetworkKey = networkKey;
+            mHash = hash;
+            mElapsedMillis = elapsedMillis;
+        }
+    }
+}
@@ -20,6 +20,8 @@ import android.net.NetworkKey;
 import android.net.RecommendationRequest;
 import android.net.RecommendationResult;
 import android.net.ScoredNetwork;
+import android.net.wifi.WifiConfiguration;
+import java.util.List;
 
 /**
  * Provider to return {@link ScoredNetwork} from cached scores in NetworkRecommendationProvider.
@@ -29,6 +31,26 @@ public interface SynchronousNetworkRecommendationProvider {
     /** Returns a {@link ScoredNetwork} if present in the cache. Otherwise, return null. */
     ScoredNetwork getCachedScoredNetwork(NetworkKey networkKey);
 
+    /**
+     * Returns the cached {@link ScoredNetwork} for each key, or null where there is none. All keys
+     * are resolved against the same cache state.
+     */
+    ScoredNetwork[] getCachedScoredNetworks(NetworkKey[] networkKeys);
+
     /** Returns a {@link RecommendationResult} using the internal NetworkRecommendationProvider. */
     RecommendationResult requestRecommendation(RecommendationRequest request);
+
+    /**
+     * Returns a {@link RecommendationResult} for each request, in order. All requests are
+     * resolved against the same cache state.
+     */
+    RecommendationResult[] requestRecommendations(RecommendationRequest[] requests);
+
+    /**
+     * Returns up to {@code maxResults} recommended networks of distinct SSIDs for the request,
+     * best first, so that callers can fall back to the next network without another request.
+     * Returns an empty list if no network can be recommended.
+     */
+    List<WifiConfiguration> requestRankedRecommendations(
+            RecommendationRequest request, int maxResults);
 }
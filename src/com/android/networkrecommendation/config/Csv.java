@@ -70,11 +70,28 @@ public class Csv {
      * @throws java.io.IOException if reading from 'reader' fails
      */
     public static boolean parseLine(BufferedReader reader, List<String> out) throws IOException {
+        return parseLine(reader, out, null);
+    }
+
+    /**
+     * Parse a record as {@link #parseLine(BufferedReader, List)} does, also noting where each
+     * value starts, for error messages.
+     *
+     * @param starts if not null, receives for each value the offset of its first character
+     *     (after any opening quote) in the record, physical lines joined by a single newline
+     */
+    public static boolean parseLine(BufferedReader reader, List<String> out,
+            List<Integer> starts) throws IOException {
         String text = reader.readLine();
         if (text == null) return false;
 
         int pos = 0;
+        int lineStart = 0;  // Offset of the current physical line in the record.
         do {
+            if (starts != null) {
+                boolean quoted = pos < text.length() && text.charAt(pos) == '"';
+                starts.add(lineStart + pos + (quoted ? 1 : 0));
+            }
             StringBuilder buf = new StringBuilder();
             int comma;
             for (;;) {
@@ -86,6 +103,7 @@ public class Csv {
                 buf.append(text, pos, quote);
                 while ((quote = text.indexOf('"', (pos = quote + 1))) == -1) {
                     buf.append(text, pos, text.length()).append('\n');
+                    lineStart += text.length() + 1;
                     text = reader.readLine();
                     if (text == null) {
                         out.add(buf.toString());
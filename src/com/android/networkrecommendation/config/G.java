@@ -15,6 +15,8 @@
  */
 package com.android.networkrecommendation.config;
 
+import java.util.concurrent.TimeUnit;
+
 /** Application behavior parameters. */
 public final class G {
 
@@ -25,6 +27,38 @@ public final class G {
     public interface Netrec {
         Flag<Boolean> enableSensitiveLogging = new Flag(false);
         Flag<String> wideAreaNetworks = new Flag("xfinitywifi,XFINITY");
+        /** Maximum number of scores held in memory and in the score file. */
+        Flag<Integer> scoreStorageCapacity = new Flag(20000);
+        /** Scores older than this are ignored and dropped. Zero or less disables expiry. */
+        Flag<Long> scoreTtlMillis = new Flag(TimeUnit.DAYS.toMillis(7));
+        /**
+         * Recommendation requests with at least this many scan results are scored in parallel,
+         * if the common fork join pool has more than one thread. Zero or less disables parallel
+         * scoring. The default is a guess; the crossover has not been measured on devices.
+         */
+        Flag<Integer> parallelScoringThreshold = new Flag(512);
+        /** Percentage of a network's badging curve added to its recommendation score. */
+        Flag<Integer> badgeBonusPercent = new Flag(50);
+        /** Subtracted from the recommendation score of networks hinted to be metered. */
+        Flag<Integer> meteredPenalty = new Flag(10);
+        /** Subtracted from the recommendation score of networks with a captive portal. */
+        Flag<Integer> captivePortalPenalty = new Flag(20);
+        /** Added to the recommendation score of 5GHz candidates. */
+        Flag<Integer> band5GHzBonus = new Flag(5);
+        /** Scores pushed to the framework within this window are merged into one update. */
+        Flag<Long> scorePublishWindowMillis = new Flag(100L);
+        /** Scores identical to the last one pushed for their network are re-sent after this. */
+        Flag<Long> scoreRepushIntervalMillis = new Flag(TimeUnit.MINUTES.toMillis(30));
+        /**
+         * If positive, recommendation requests are ranked asynchronously and answered within this
+         * long with the best network found so far. Zero or less ranks requests inline.
+         */
+        Flag<Long> recommendationDeadlineMillis = new Flag(0L);
+        /**
+         * Messages running longer than this on the service's handlers have their stack logged.
+         * Zero or less disables the check.
+         */
+        Flag<Long> handlerMessageBudgetMillis = new Flag(200L);
     }
 
     private G() {}
@@ -28,7 +28,6 @@ import android.database.ContentObserver;
 import android.net.NetworkInfo;
 import android.net.NetworkScoreManager;
 import android.net.RecommendationRequest;
-import android.net.RecommendationResult;
 import android.net.wifi.ScanResult;
 import android.net.wifi.WifiConfiguration;
 import android.net.wifi.WifiManager;
@@ -36,17 +35,21 @@ import android.os.Handler;
 import android.os.UserManager;
 import android.provider.Settings;
 import android.support.annotation.IntDef;
-import android.support.annotation.Nullable;
 import com.android.networkrecommendation.R;
 import com.android.networkrecommendation.SynchronousNetworkRecommendationProvider;
+import com.android.networkrecommendation.scan.ScanResultHub;
+import com.android.networkrecommendation.scan.ScanSnapshot;
+import com.android.networkrecommendation.scoring.ScanDeltaScorer;
 import com.android.networkrecommendation.util.Blog;
+import com.android.networkrecommendation.util.InstrumentedHandler;
 import com.android.networkrecommendation.util.RoboCompatUtil;
 import com.android.networkrecommendation.util.ScanResultUtil;
 import java.io.FileDescriptor;
 import java.io.PrintWriter;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
-import java.util.ArrayList;
+import java.util.ArrayDeque;
+import java.util.Collections;
 import java.util.List;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
@@ -145,9 +148,19 @@ public class WifiNotificationController {
     static final String ACTION_NOTIFICATION_DELETED =
             "com.android.networkrecommendation.notify.NOTIFICATION_DELETED";
 
+    /** Maximum number of ranked networks to request, including the recommended network. */
+    private static final int MAX_RANKED_NETWORKS = 3;
+
     /** Network recommended by {@link NetworkScoreManager#requestRecommendation}. */
     private WifiConfiguration mRecommendedNetwork;
 
+    /**
+     * Next best networks from the same recommendation as {@link #mRecommendedNetwork}, best first,
+     * tried in turn if connecting to the recommended network fails. Each has a different SSID,
+     * since connecting ignores the BSSID.
+     */
+    private final ArrayDeque<WifiConfiguration> mFallbackNetworks = new ArrayDeque<>();
+
     /** Whether {@link WifiNotificationController} has been started. */
     private final AtomicBoolean mStarted;
 
@@ -161,7 +174,12 @@ public class WifiNotificationController {
     private final NotificationManager mNotificationManager;
     private final UserManager mUserManager;
     private final WifiNotificationHelper mWifiNotificationHelper;
+    private final ScanResultHub mScanResultHub;
+    private final ScanResultHub.Listener mScanListener = this::handleScanResults;
     private NetworkInfo mNetworkInfo;
+    private List<WifiConfiguration> mConfiguredNetworks;
+    private final ScanDeltaScorer mOpenNetworkScanScorer =
+            new ScanDeltaScorer(this::scoreOpenNetwork);
     private NetworkInfo.DetailedState mDetailedState;
     private volatile int mWifiState;
 
@@ -173,7 +191,8 @@ public class WifiNotificationController {
             WifiManager wifiManager,
             NotificationManager notificationManager,
             UserManager userManager,
-            WifiNotificationHelper helper) {
+            WifiNotificationHelper helper,
+            ScanResultHub scanResultHub) {
         mContext = context;
         mContentResolver = contentResolver;
         mNetworkRecommendationProvider = networkRecommendationProvider;
@@ -182,6 +201,7 @@ public class WifiNotificationController {
         mUserManager = userManager;
         mHandler = handler;
         mWifiNotificationHelper = helper;
+        mScanResultHub = scanResultHub;
         mStarted = new AtomicBoolean(false);
 
         // Setting is in seconds
@@ -202,11 +222,12 @@ public class WifiNotificationController {
 
         mWifiState = mWifiManager.getWifiState();
         mDetailedState = NetworkInfo.DetailedState.IDLE;
+        handleConfiguredNetworksChanged();
 
         IntentFilter filter = new IntentFilter();
         filter.addAction(WifiManager.WIFI_STATE_CHANGED_ACTION);
         filter.addAction(WifiManager.NETWORK_STATE_CHANGED_ACTION);
-        filter.addAction(WifiManager.SCAN_RESULTS_AVAILABLE_ACTION);
+        filter.addAction(WifiManager.CONFIGURED_NETWORKS_CHANGED_ACTION);
         filter.addAction(RoboCompatUtil.ACTION_USER_RESTRICTIONS_CHANGED);
         filter.addAction(ACTION_CONNECT_TO_RECOMMENDED_NETWORK_AND_OPEN_SETTINGS);
         filter.addAction(ACTION_CONNECT_TO_RECOMMENDED_NETWORK);
@@ -217,6 +238,7 @@ public class WifiNotificationController {
         mContext.registerReceiver(
                 mBroadcastReceiver, filter, null /* broadcastPermission */, mHandler);
         mNotificationEnabledSettingObserver.register();
+        mScanResultHub.subscribe(mScanListener);
 
         handleUserRestrictionsChanged();
     }
@@ -228,12 +250,15 @@ public class WifiNotificationController {
         }
         mContext.unregisterReceiver(mBroadcastReceiver);
         mNotificationEnabledSettingObserver.unregister();
+        mScanResultHub.unsubscribe(mScanListener);
     }
 
     private final BroadcastReceiver mBroadcastReceiver =
             new BroadcastReceiver() {
                 @Override
                 public void onReceive(Context context, Intent intent) {
+                    InstrumentedHandler.nameCurrentMessage(
+                            "WifiNotificationController: " + intent.getAction());
                     try {
                         switch (intent.getAction()) {
                             case WifiManager.WIFI_STATE_CHANGED_ACTION:
@@ -243,8 +268,8 @@ public class WifiNotificationController {
                             case WifiManager.NETWORK_STATE_CHANGED_ACTION:
                                 handleNetworkStateChange(intent);
                                 break;
-                            case WifiManager.SCAN_RESULTS_AVAILABLE_ACTION:
-                                checkAndSetNotification(mNetworkInfo);
+                            case WifiManager.CONFIGURED_NETWORKS_CHANGED_ACTION:
+                                handleConfiguredNetworksChanged();
                                 break;
                             case RoboCompatUtil.ACTION_USER_RESTRICTIONS_CHANGED:
                                 handleUserRestrictionsChanged();
@@ -313,11 +338,20 @@ public class WifiNotificationController {
         }
     }
 
+    private void handleConfiguredNetworksChanged() {
+        mConfiguredNetworks = mWifiManager.getConfiguredNetworks();
+        mOpenNetworkScanScorer.invalidate();
+    }
+
     private void handleUserRestrictionsChanged() {
         mWifiConfigRestricted = mUserManager.hasUserRestriction(UserManager.DISALLOW_CONFIG_WIFI);
         Blog.v(TAG, "handleUserRestrictionsChanged: %b", mWifiConfigRestricted);
     }
 
+    private void handleScanResults() {
+        checkAndSetNotification(mNetworkInfo);
+    }
+
     private void checkAndSetNotification(NetworkInfo networkInfo) {
         // TODO: unregister broadcast so we do not have to check here
         // If we shouldn't place a notification on available networks, then
@@ -336,9 +370,13 @@ public class WifiNotificationController {
 
         if (state == NetworkInfo.State.DISCONNECTED || state == NetworkInfo.State.UNKNOWN) {
             maybeLogOpenNetworksAvailable();
-            RecommendationResult result = getOpenNetworkRecommendation();
-            if (result != null && result.getWifiConfiguration() != null) {
-                mRecommendedNetwork = result.getWifiConfiguration();
+            // Only fetched here, so scans while connected or disabled cost nothing.
+            List<WifiConfiguration> rankedNetworks =
+                    getOpenNetworkRecommendations(mScanResultHub.getLatest());
+            if (!rankedNetworks.isEmpty()) {
+                mRecommendedNetwork = rankedNetworks.get(0);
+                mFallbackNetworks.clear();
+                mFallbackNetworks.addAll(rankedNetworks.subList(1, rankedNetworks.size()));
 
                 if (++mNumScansSinceNetworkStateChange >= NUM_SCANS_BEFORE_ACTUALLY_SCANNING) {
                     /*
@@ -370,35 +408,36 @@ public class WifiNotificationController {
      * Uses {@link NetworkScoreManager} to choose a qualified network out of the list of {@link
      * ScanResult}s.
      *
-     * @return returns the best qualified open networks, if any.
+     * @return returns the best qualified open networks, best first, if any.
      */
-    @Nullable
-    private RecommendationResult getOpenNetworkRecommendation() {
-        List<ScanResult> scanResults = mWifiManager.getScanResults();
-        if (scanResults == null || scanResults.isEmpty()) {
-            return null;
+    private List<WifiConfiguration> getOpenNetworkRecommendations(ScanSnapshot snapshot) {
+        if (snapshot.isEmpty()) {
+            return Collections.emptyList();
         }
 
-        ArrayList<ScanResult> openNetworks = new ArrayList<>();
-        List<WifiConfiguration> configuredNetworks = mWifiManager.getConfiguredNetworks();
-        for (ScanResult scanResult : scanResults) {
-            //A capability of [ESS] represents an open access point
-            //that is available for an STA to connect
-            //TODO: potentially handle this within NetworkRecommendationProvider instead.
-            if ("[ESS]".equals(scanResult.capabilities)) {
-                if (isSavedNetwork(scanResult, configuredNetworks)) {
-                    continue;
-                }
-                openNetworks.add(scanResult);
-            }
-        }
+        // Only scan results that changed since the last scan are checked against saved networks.
+        mOpenNetworkScanScorer.update(snapshot.getScanResults());
+        List<ScanResult> openNetworks = mOpenNetworkScanScorer.getUnranked();
 
         Blog.d(TAG, "Sending RecommendationRequest. [num_open_networks=%d]", openNetworks.size());
         RecommendationRequest request =
                 new RecommendationRequest.Builder()
                         .setScanResults(openNetworks.toArray(new ScanResult[openNetworks.size()]))
                         .build();
-        return mNetworkRecommendationProvider.requestRecommendation(request);
+        return mNetworkRecommendationProvider.requestRankedRecommendations(
+                request, MAX_RANKED_NETWORKS);
+    }
+
+    /** Marks unsaved open networks as candidates, leaving their ranking to recommendations. */
+    private int scoreOpenNetwork(ScanResult scanResult) {
+        //A capability of [ESS] represents an open access point
+        //that is available for an STA to connect
+        //TODO: potentially handle this within NetworkRecommendationProvider instead.
+        if (ScanResultUtil.isScanResultForOpenEssNetwork(scanResult)
+                && !isSavedNetwork(scanResult, mConfiguredNetworks)) {
+            return ScanDeltaScorer.UNRANKED;
+        }
+        return ScanDeltaScorer.EXCLUDED;
     }
 
     /** Returns true if scanResult matches the list of saved networks */
@@ -497,10 +536,16 @@ public class WifiNotificationController {
 
     /**
      * Displays the Failed To Connect notification after the Connecting notification is shown for
-     * {@link #TIME_TO_SHOW_CONNECTING_MILLIS} duration.
+     * {@link #TIME_TO_SHOW_CONNECTING_MILLIS} duration, unless there is a fallback network left
+     * to try from the same recommendation.
      */
     private void updateOnFailedToConnect() {
-        if (mState == State.CONNECTING_IN_NOTIFICATION) {
+        if (mState == State.CONNECTING_IN_NOTIFICATION && !mFallbackNetworks.isEmpty()) {
+            mRecommendedNetwork = mFallbackNetworks.poll();
+            Blog.d(TAG, "Failed to connect, trying next recommended network.");
+            connectToRecommendedNetwork();
+            updateOnConnecting(true /* showNotification */);
+        } else if (mState == State.CONNECTING_IN_NOTIFICATION) {
             Notification notification = mWifiNotificationHelper.createFailedToConnectNotification();
             postNotification(notification);
             mState = State.CONNECT_FAILED;
@@ -520,6 +565,7 @@ public class WifiNotificationController {
     private void handleNotificationDeleted() {
         mState = State.NO_RECOMMENDATION;
         mRecommendedNetwork = null;
+        mFallbackNetworks.clear();
     }
 
     private void postNotification(Notification notification) {
@@ -535,6 +581,7 @@ public class WifiNotificationController {
             removeNotification();
         }
         mRecommendedNetwork = null;
+        mFallbackNetworks.clear();
         mNotificationRepeatTime = 0;
         mNumScansSinceNetworkStateChange = 0;
         mOpenNetworksLoggingRepeatTime = 0;
@@ -544,6 +591,7 @@ public class WifiNotificationController {
         mNotificationManager.cancel(NOTIFICATION_TAG, NOTIFICATION_ID);
         mState = State.NO_RECOMMENDATION;
         mRecommendedNetwork = null;
+        mFallbackNetworks.clear();
     }
 
     public void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
@@ -551,6 +599,8 @@ public class WifiNotificationController {
         pw.println("mNotificationRepeatTime " + mNotificationRepeatTime);
         pw.println("mState " + mState);
         pw.println("mNumScansSinceNetworkStateChange " + mNumScansSinceNetworkStateChange);
+        pw.println("mFallbackNetworks " + mFallbackNetworks.size());
+        mOpenNetworkScanScorer.dump(pw);
     }
 
     private class NotificationEnabledSettingObserver extends ContentObserver {
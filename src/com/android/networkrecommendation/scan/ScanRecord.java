@@ -0,0 +1,69 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.networkrecommendation.scan;
+
+import android.net.wifi.ScanResult;
+
+import com.android.networkrecommendation.util.BssidUtil;
+import com.android.networkrecommendation.util.CapabilitiesUtil;
+import com.android.networkrecommendation.util.ScanResultUtil;
+
+/**
+ * The fields of a {@link ScanResult} which subscribers of {@link ScanResultHub} commonly read,
+ * parsed once per scan. Immutable.
+ */
+public final class ScanRecord {
+    /** The BSSID packed by {@link BssidUtil#pack}, or {@link BssidUtil#INVALID}. */
+    public final long bssid;
+    /**
+     * The unquoted SSID, as in {@link ScanResult#SSID}. Interned per hub, so equal SSIDs of
+     * records from the same hub are usually the same instance.
+     */
+    public final String ssid;
+    /** Frequency in MHz. */
+    public final int frequency;
+    /** Signal level in dBm. */
+    public final int rssi;
+    /** The {@link CapabilitiesUtil} flags of the capabilities. */
+    public final int securityFlags;
+
+    public ScanRecord(long bssid, String ssid, int frequency, int rssi, int securityFlags) {
+        this.bssid = bssid;
+        this.ssid = ssid;
+        this.frequency = frequency;
+        this.rssi = rssi;
+        this.securityFlags = securityFlags;
+    }
+
+    /** Returns true if this network has no PSK, EAP or WEP security. */
+    public boolean isOpen() {
+        return CapabilitiesUtil.isOpen(securityFlags);
+    }
+
+    public boolean is24GHz() {
+        return ScanResultUtil.is24GHz(frequency);
+    }
+
+    public boolean is5GHz() {
+        return ScanResultUtil.is5GHz(frequency);
+    }
+
+    @Override
+    public String toString() {
+        return "ScanRecord{" + BssidUtil.unpack(bssid) + " " + ssid + " " + frequency + "MHz "
+                + rssi + "dBm flags=" + securityFlags + "}";
+    }
+}
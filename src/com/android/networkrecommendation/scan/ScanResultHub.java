@@ -0,0 +1,182 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.networkrecommendation.scan;
+
+import static com.android.networkrecommendation.Constants.TAG;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.wifi.ScanResult;
+import android.net.wifi.WifiManager;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.support.annotation.Nullable;
+import android.util.ArrayMap;
+
+import com.android.networkrecommendation.util.Blog;
+import com.android.networkrecommendation.util.BssidUtil;
+import com.android.networkrecommendation.util.CapabilitiesUtil;
+import com.android.networkrecommendation.util.InstrumentedHandler;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tells subscribers of each {@link WifiManager#SCAN_RESULTS_AVAILABLE_ACTION} and fetches the
+ * scan results at most once per broadcast, sharing them as one {@link ScanSnapshot}, instead of
+ * each subscriber listening for the broadcast and copying the results over binder itself.
+ *
+ * <p>The fetch is lazy: it happens on the first {@link #getLatest} after a broadcast, so
+ * broadcasts which no subscriber currently needs cost no binder call at all.
+ *
+ * <p>The broadcast receiver is only registered while there are subscribers. Must only be used on
+ * the thread of the handler it was created with, on which subscribers are also called.
+ */
+public class ScanResultHub {
+    /** Bounds the SSID pool should the device move through many networks. */
+    private static final int MAX_INTERNED_SSIDS = 512;
+
+    /** Told of every broadcast. Calls {@link #getLatest} only if it needs the results. */
+    public interface Listener {
+        void onScanResultsAvailable();
+    }
+
+    private final Context mContext;
+    private final WifiManager mWifiManager;
+    private final Handler mHandler;
+    private final List<Listener> mListeners = new ArrayList<>();
+    private final ArrayMap<String, String> mSsids = new ArrayMap<>();
+    /** Null until fetched after the latest broadcast. */
+    @Nullable private ScanSnapshot mLatest;
+
+    private long mBroadcasts;
+    private long mFetches;
+    private long mFetchNanos;
+
+    public ScanResultHub(Context context, WifiManager wifiManager, Handler handler) {
+        mContext = context;
+        mWifiManager = wifiManager;
+        mHandler = handler;
+    }
+
+    private final BroadcastReceiver mBroadcastReceiver =
+            new BroadcastReceiver() {
+                @Override
+                public void onReceive(Context context, Intent intent) {
+                    InstrumentedHandler.nameCurrentMessage(
+                            "ScanResultHub: " + intent.getAction());
+                    mBroadcasts++;
+                    mLatest = null;
+                    // Copied so that listeners may unsubscribe while being called.
+                    List<Listener> listeners = new ArrayList<>(mListeners);
+                    for (int i = 0; i < listeners.size(); i++) {
+                        try {
+                            listeners.get(i).onScanResultsAvailable();
+                        } catch (RuntimeException re) {
+                            // As in the controllers' own receivers, one failure should not stop
+                            // the other listeners.
+                            Blog.e(TAG, re, "RuntimeException in scan result listener.");
+                        }
+                    }
+                }
+            };
+
+    /** Start delivering snapshots to the listener. Does nothing if already subscribed. */
+    public void subscribe(Listener listener) {
+        if (mListeners.contains(listener)) {
+            return;
+        }
+        mListeners.add(listener);
+        if (mListeners.size() == 1) {
+            mContext.registerReceiver(mBroadcastReceiver,
+                    new IntentFilter(WifiManager.SCAN_RESULTS_AVAILABLE_ACTION),
+                    null /* broadcastPermission */, mHandler);
+        }
+    }
+
+    public void unsubscribe(Listener listener) {
+        if (!mListeners.remove(listener) || !mListeners.isEmpty()) {
+            return;
+        }
+        mContext.unregisterReceiver(mBroadcastReceiver);
+        // Nothing keeps it current any more.
+        mLatest = null;
+    }
+
+    /**
+     * Returns the latest snapshot, fetching one if none was taken since the latest broadcast or
+     * since the first subscriber subscribed. Without subscribers, fetches every time.
+     */
+    public ScanSnapshot getLatest() {
+        return mLatest != null ? mLatest : fetch();
+    }
+
+    public void dump(PrintWriter writer) {
+        writer.println("ScanResultHub: listeners=" + mListeners.size()
+                + " broadcasts=" + mBroadcasts
+                + " fetches=" + mFetches
+                + " meanFetch=" + (mFetchNanos / Math.max(1, mFetches) / 1000) + "us"
+                + " latest=" + (mLatest != null ? mLatest.size() : "none")
+                + " ssids=" + mSsids.size());
+    }
+
+    private ScanSnapshot fetch() {
+        final long start = SystemClock.elapsedRealtimeNanos();
+        List<ScanResult> scanResults = mWifiManager.getScanResults();
+        ScanSnapshot snapshot;
+        if (scanResults == null || scanResults.isEmpty()) {
+            snapshot = ScanSnapshot.EMPTY;
+        } else {
+            List<ScanRecord> records = new ArrayList<>(scanResults.size());
+            for (int i = 0; i < scanResults.size(); i++) {
+                ScanResult scanResult = scanResults.get(i);
+                records.add(new ScanRecord(
+                        BssidUtil.pack(scanResult.BSSID),
+                        intern(scanResult.SSID),
+                        scanResult.frequency,
+                        scanResult.level,
+                        CapabilitiesUtil.getFlags(scanResult.capabilities)));
+            }
+            snapshot = new ScanSnapshot(scanResults, records, SystemClock.elapsedRealtime());
+        }
+        mFetches++;
+        mFetchNanos += SystemClock.elapsedRealtimeNanos() - start;
+        Blog.v(TAG, "ScanResultHub fetched %d scan results", snapshot.size());
+        if (!mListeners.isEmpty()) {
+            mLatest = snapshot;
+        }
+        return snapshot;
+    }
+
+    @Nullable
+    private String intern(@Nullable String ssid) {
+        if (ssid == null) {
+            return null;
+        }
+        String interned = mSsids.get(ssid);
+        if (interned == null) {
+            if (mSsids.size() >= MAX_INTERNED_SSIDS) {
+                mSsids.clear();
+            }
+            mSsids.put(ssid, ssid);
+            interned = ssid;
+        }
+        return interned;
+    }
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.networkrecommendation.scan;
+
+import android.net.wifi.ScanResult;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * One fetch of the scan results, shared by every subscriber of {@link ScanResultHub}.
+ *
+ * <p>The lists are unmodifiable. The {@link ScanResult}s themselves are mutable framework objects
+ * kept for APIs which need them, such as recommendation requests; subscribers must not modify
+ * them.
+ */
+public final class ScanSnapshot {
+    static final ScanSnapshot EMPTY =
+            new ScanSnapshot(Collections.emptyList(), Collections.emptyList(), 0);
+
+    private final List<ScanResult> mScanResults;
+    private final List<ScanRecord> mRecords;
+    private final long mElapsedRealtimeMillis;
+
+    ScanSnapshot(List<ScanResult> scanResults, List<ScanRecord> records,
+            long elapsedRealtimeMillis) {
+        mScanResults = Collections.unmodifiableList(scanResults);
+        mRecords = Collections.unmodifiableList(records);
+        mElapsedRealtimeMillis = elapsedRealtimeMillis;
+    }
+
+    /** The scan results, in the order the framework returned them. */
+    public List<ScanResult> getScanResults() {
+        return mScanResults;
+    }
+
+    /** A record for each of {@link #getScanResults}, at the same index. */
+    public List<ScanRecord> getRecords() {
+        return mRecords;
+    }
+
+    public int size() {
+        return mRecords.size();
+    }
+
+    public boolean isEmpty() {
+        return mRecords.isEmpty();
+    }
+
+    /** When the scan results were fetched, in {@link android.os.SystemClock#elapsedRealtime}. */
+    public long getElapsedRealtimeMillis() {
+        return mElapsedRealtimeMillis;
+    }
+}
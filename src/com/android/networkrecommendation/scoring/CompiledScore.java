@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.networkrecommendation.scoring;
+
+import com.android.networkrecommendation.util.ScanResultUtil;
+
+import java.util.Arrays;
+
+/**
+ * The score of one network under a {@link ScoringPipeline}, flattened into dense lookup tables
+ * covering every RSSI from -128 to 127 dBm plus a per-band bonus. Evaluating a candidate is a
+ * table access and an addition, however many factors the pipeline has.
+ *
+ * <p>RSSIs outside the table range, which no radio reports, are clamped to it.
+ */
+public final class CompiledScore {
+    static final int MIN_RSSI = Byte.MIN_VALUE;
+    static final int TABLE_SIZE = 256;
+
+    private final short[] mScores;
+    /** Scores for the active network. Shares {@link #mScores} if they are identical. */
+    private final short[] mActiveScores;
+    private final int mBand24GHzBonus;
+    private final int mBand5GHzBonus;
+
+    private CompiledScore(Builder builder) {
+        mScores = toShorts(builder.mScores);
+        mActiveScores =
+                Arrays.equals(builder.mScores, builder.mActiveScores)
+                        ? mScores
+                        : toShorts(builder.mActiveScores);
+        mBand24GHzBonus = builder.mBand24GHzBonus;
+        mBand5GHzBonus = builder.mBand5GHzBonus;
+    }
+
+    /**
+     * Returns the score of a candidate.
+     *
+     * @param isActiveNetwork whether the candidate is the network currently connected.
+     * @param frequency the candidate's frequency in MHz.
+     */
+    public int score(int rssi, boolean isActiveNetwork, int frequency) {
+        int index = Math.min(Math.max(rssi - MIN_RSSI, 0), TABLE_SIZE - 1);
+        int score = isActiveNetwork ? mActiveScores[index] : mScores[index];
+        if (ScanResultUtil.is5GHz(frequency)) {
+            score += mBand5GHzBonus;
+        } else if (ScanResultUtil.is24GHz(frequency)) {
+            score += mBand24GHzBonus;
+        }
+        return score;
+    }
+
+    private static short[] toShorts(int[] values) {
+        short[] shorts = new short[values.length];
+        for (int i = 0; i < values.length; i++) {
+            shorts[i] = (short) Math.min(Math.max(values[i], Short.MIN_VALUE), Short.MAX_VALUE);
+        }
+        return shorts;
+    }
+
+    /** Accumulates the contributions of each {@link ScoringPipeline.Factor}. */
+    public static final class Builder {
+        private final int[] mScores = new int[TABLE_SIZE];
+        private final int[] mActiveScores = new int[TABLE_SIZE];
+        private int mBand24GHzBonus;
+        private int mBand5GHzBonus;
+
+        Builder() {}
+
+        /** Returns the RSSI of the given table index. */
+        public int rssiAt(int index) {
+            return MIN_RSSI + index;
+        }
+
+        /** Add a contribution at one RSSI for inactive and for active networks. */
+        public Builder add(int index, int score, int activeScore) {
+            mScores[index] += score;
+            mActiveScores[index] += activeScore;
+            return this;
+        }
+
+        /** Add a contribution at every RSSI. */
+        public Builder addConstant(int score) {
+            for (int i = 0; i < TABLE_SIZE; i++) {
+                mScores[i] += score;
+                mActiveScores[i] += score;
+            }
+            return this;
+        }
+
+        /** Add a bonus for candidates on the given bands. */
+        public Builder addBandBonus(int band24GHzBonus, int band5GHzBonus) {
+            mBand24GHzBonus += band24GHzBonus;
+            mBand5GHzBonus += band5GHzBonus;
+            return this;
+        }
+
+        CompiledScore build() {
+            return new CompiledScore(this);
+        }
+    }
+}
@@ -0,0 +1,241 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.networkrecommendation.scoring;
+
+import android.net.wifi.ScanResult;
+import android.support.annotation.Nullable;
+import android.text.TextUtils;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Scores successive scans incrementally. Each scan is diffed against the previous one by BSSID,
+ * and only added BSSIDs and BSSIDs whose SSID, capabilities, frequency or RSSI changed are passed
+ * to the {@link Scorer}. The best scored candidate is maintained as entries change, and only
+ * recomputed from the stored scores when the previous best got worse or disappeared.
+ *
+ * <p>Diffing still visits every scan result, since scans are always delivered whole, but scoring
+ * work is proportional to the churn between scans.
+ *
+ * <p>Among equal scores the candidate earlier in the latest scan wins, as with a linear scan that
+ * keeps the first maximum. When an unchanged best keeps its score this is not re-evaluated, so a
+ * reordered scan may keep a different one of several equally scored candidates.
+ *
+ * <p>Not thread safe.
+ */
+public final class ScanDeltaScorer {
+    /** Score for scan results which are not candidates at all. */
+    public static final int EXCLUDED = Integer.MIN_VALUE;
+
+    /**
+     * Score for candidates which cannot be scored locally, e.g. because they defer to network
+     * recommendations. They are never the best candidate but are listed by {@link #getUnranked}.
+     */
+    public static final int UNRANKED = Integer.MIN_VALUE + 1;
+
+    /** Scores a single scan result. Must depend only on the scan result and the scorer's state. */
+    public interface Scorer {
+        /** Returns the score of the scan result, or {@link #EXCLUDED} or {@link #UNRANKED}. */
+        int score(ScanResult scanResult);
+    }
+
+    private final Scorer mScorer;
+    private final Map<String, Entry> mEntries = new HashMap<>();
+    private int mEpoch;
+    private boolean mInvalidated;
+    @Nullable private Entry mBest;
+    private int mUnrankedCount;
+
+    private long mScans;
+    private long mScanResults;
+    private long mRescored;
+    private int mLastAdded;
+    private int mLastRemoved;
+    private int mLastChanged;
+
+    public ScanDeltaScorer(Scorer scorer) {
+        mScorer = scorer;
+    }
+
+    /**
+     * Rescore every entry on the next {@link #update}. Call whenever the scorer's state changes.
+     */
+    public void invalidate() {
+        mInvalidated = true;
+    }
+
+    /** Forget the previous scan. */
+    public void clear() {
+        mEntries.clear();
+        mBest = null;
+        mUnrankedCount = 0;
+    }
+
+    /** Apply a new scan, rescoring only what changed since the previous one. */
+    public void update(List<ScanResult> scanResults) {
+        final int epoch = ++mEpoch;
+        final boolean rescoreAll = mInvalidated;
+        mInvalidated = false;
+        boolean bestInvalidated = rescoreAll;
+        int added = 0;
+        int changed = 0;
+        for (int position = 0; position < scanResults.size(); position++) {
+            ScanResult scanResult = scanResults.get(position);
+            if (scanResult.BSSID == null) {
+                continue;
+            }
+            Entry entry = mEntries.get(scanResult.BSSID);
+            if (entry == null) {
+                entry = new Entry();
+                mEntries.put(scanResult.BSSID, entry);
+                added++;
+            } else if (entry.mEpoch == epoch) {
+                // Duplicate BSSID within one scan; the first occurrence wins.
+                continue;
+            } else if (!rescoreAll && !entry.hasChanged(scanResult)) {
+                entry.mScanResult = scanResult;
+                entry.mPosition = position;
+                entry.mEpoch = epoch;
+                continue;
+            } else {
+                changed++;
+            }
+            int previousScore = entry.mScore;
+            entry.set(scanResult, mScorer.score(scanResult), position, epoch);
+            mRescored++;
+            if (previousScore == UNRANKED) {
+                mUnrankedCount--;
+            }
+            if (entry.mScore == UNRANKED) {
+                mUnrankedCount++;
+            }
+            if (entry == mBest && entry.mScore < previousScore) {
+                bestInvalidated = true;
+            } else if (!bestInvalidated && entry.mScore > UNRANKED && isBetter(entry, mBest)) {
+                mBest = entry;
+            }
+        }
+
+        int removed = 0;
+        for (Iterator<Entry> it = mEntries.values().iterator(); it.hasNext(); ) {
+            Entry entry = it.next();
+            if (entry.mEpoch != epoch) {
+                it.remove();
+                removed++;
+                if (entry.mScore == UNRANKED) {
+                    mUnrankedCount--;
+                }
+                if (entry == mBest) {
+                    bestInvalidated = true;
+                }
+            }
+        }
+        if (bestInvalidated) {
+            recomputeBest();
+        }
+
+        mScans++;
+        mScanResults += scanResults.size();
+        mLastAdded = added;
+        mLastRemoved = removed;
+        mLastChanged = changed;
+    }
+
+    /** Returns the best scored scan result of the latest scan, or null if there is none. */
+    @Nullable
+    public ScanResult getBest() {
+        return mBest != null ? mBest.mScanResult : null;
+    }
+
+    /** Returns the score of {@link #getBest}, or {@link #EXCLUDED} if there is none. */
+    public int getBestScore() {
+        return mBest != null ? mBest.mScore : EXCLUDED;
+    }
+
+    /** Returns the {@link #UNRANKED} candidates of the latest scan, in scan order. */
+    public List<ScanResult> getUnranked() {
+        if (mUnrankedCount == 0) {
+            return Collections.emptyList();
+        }
+        List<Entry> entries = new ArrayList<>(mUnrankedCount);
+        for (Entry entry : mEntries.values()) {
+            if (entry.mScore == UNRANKED) {
+                entries.add(entry);
+            }
+        }
+        Collections.sort(entries, (a, b) -> Integer.compare(a.mPosition, b.mPosition));
+        List<ScanResult> unranked = new ArrayList<>(entries.size());
+        for (int i = 0; i < entries.size(); i++) {
+            unranked.add(entries.get(i).mScanResult);
+        }
+        return unranked;
+    }
+
+    public void dump(PrintWriter writer) {
+        writer.println(
+                "ScanDeltaScorer: bssids=" + mEntries.size()
+                        + " last[added=" + mLastAdded
+                        + " removed=" + mLastRemoved
+                        + " changed=" + mLastChanged + "]"
+                        + " scans=" + mScans
+                        + " rescored=" + mRescored + "/" + mScanResults);
+    }
+
+    private void recomputeBest() {
+        mBest = null;
+        for (Entry entry : mEntries.values()) {
+            if (entry.mScore > UNRANKED && isBetter(entry, mBest)) {
+                mBest = entry;
+            }
+        }
+    }
+
+    private static boolean isBetter(Entry entry, @Nullable Entry best) {
+        if (best == null || entry.mScore > best.mScore) {
+            return true;
+        }
+        return entry.mScore == best.mScore && entry.mPosition < best.mPosition;
+    }
+
+    private static final class Entry {
+        ScanResult mScanResult;
+        int mLevel;
+        int mScore = EXCLUDED;
+        int mPosition;
+        int mEpoch;
+
+        boolean hasChanged(ScanResult scanResult) {
+            return scanResult.level != mLevel
+                    || scanResult.frequency != mScanResult.frequency
+                    || !TextUtils.equals(scanResult.SSID, mScanResult.SSID)
+                    || !TextUtils.equals(scanResult.capabilities, mScanResult.capabilities);
+        }
+
+        void set(ScanResult scanResult, int score, int position, int epoch) {
+            mScanResult = scanResult;
+            mLevel = scanResult.level;
+            mScore = score;
+            mPosition = position;
+            mEpoch = epoch;
+        }
+    }
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.networkrecommendation.scoring;
+
+import android.net.RssiCurve;
+import android.net.ScoredNetwork;
+import android.os.Bundle;
+
+import com.android.networkrecommendation.config.G;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A chain of scoring {@link Factor}s used to rank recommendation candidates.
+ *
+ * <p>Factors are not evaluated per candidate. Instead each stored network is {@link #compile
+ * compiled} once into a {@link CompiledScore} to which every factor has contributed, so adding
+ * factors adds no per-candidate dispatch or {@link Bundle} lookups.
+ */
+public final class ScoringPipeline {
+
+    /** One term of a network's score. */
+    public interface Factor {
+        /** Add this factor's contribution for the given network. */
+        void contribute(ScoredNetwork scoredNetwork, CompiledScore.Builder builder);
+    }
+
+    private final List<Factor> mFactors;
+
+    private ScoringPipeline(List<Factor> factors) {
+        mFactors = Collections.unmodifiableList(new ArrayList<>(factors));
+    }
+
+    /** Compile the score of a network under this pipeline. */
+    public CompiledScore compile(ScoredNetwork scoredNetwork) {
+        CompiledScore.Builder builder = new CompiledScore.Builder();
+        for (int i = 0; i < mFactors.size(); i++) {
+            mFactors.get(i).contribute(scoredNetwork, builder);
+        }
+        return builder.build();
+    }
+
+    /** Returns the pipeline configured by {@link G.Netrec}. */
+    public static ScoringPipeline createDefault() {
+        return new Builder()
+                .add(new RssiCurveFactor())
+                .add(new BadgeFactor(G.Netrec.badgeBonusPercent.get()))
+                .add(new MeteredFactor(G.Netrec.meteredPenalty.get()))
+                .add(new CaptivePortalFactor(G.Netrec.captivePortalPenalty.get()))
+                .add(new BandFactor(0 /* band24GHzBonus */, G.Netrec.band5GHzBonus.get()))
+                .build();
+    }
+
+    /** Builder for {@link ScoringPipeline}. */
+    public static final class Builder {
+        private final List<Factor> mFactors = new ArrayList<>();
+
+        public Builder add(Factor factor) {
+            mFactors.add(factor);
+            return this;
+        }
+
+        public ScoringPipeline build() {
+            return new ScoringPipeline(mFactors);
+        }
+    }
+
+    /** The network's {@link RssiCurve}, including its active network boost. */
+    public static final class RssiCurveFactor implements Factor {
+        @Override
+        public void contribute(ScoredNetwork scoredNetwork, CompiledScore.Builder builder) {
+            RssiCurve curve = scoredNetwork.rssiCurve;
+            if (curve == null) {
+                return;
+            }
+            for (int i = 0; i < CompiledScore.TABLE_SIZE; i++) {
+                int rssi = builder.rssiAt(i);
+                builder.add(i, curve.lookupScore(rssi), curve.lookupScore(rssi, true));
+            }
+        }
+    }
+
+    /** A percentage of the network's badging curve, favoring networks fit for video. */
+    public static final class BadgeFactor implements Factor {
+        private final int mPercent;
+
+        public BadgeFactor(int percent) {
+            mPercent = percent;
+        }
+
+        @Override
+        public void contribute(ScoredNetwork scoredNetwork, CompiledScore.Builder builder) {
+            if (mPercent == 0 || scoredNetwork.attributes == null) {
+                return;
+            }
+            RssiCurve badgeCurve =
+                    scoredNetwork.attributes.getParcelable(
+                            ScoredNetwork.ATTRIBUTES_KEY_BADGING_CURVE);
+            if (badgeCurve == null) {
+                return;
+            }
+            for (int i = 0; i < CompiledScore.TABLE_SIZE; i++) {
+                int bonus = badgeCurve.lookupScore(builder.rssiAt(i)) * mPercent / 100;
+                builder.add(i, bonus, bonus);
+            }
+        }
+    }
+
+    /** A penalty for networks hinted to be metered. */
+    public static final class MeteredFactor implements Factor {
+        private final int mPenalty;
+
+        public MeteredFactor(int penalty) {
+            mPenalty = penalty;
+        }
+
+        @Override
+        public void contribute(ScoredNetwork scoredNetwork, CompiledScore.Builder builder) {
+            if (scoredNetwork.meteredHint) {
+                builder.addConstant(-mPenalty);
+            }
+        }
+    }
+
+    /** A penalty for networks known to have a captive portal. */
+    public static final class CaptivePortalFactor implements Factor {
+        private final int mPenalty;
+
+        public CaptivePortalFactor(int penalty) {
+            mPenalty = penalty;
+        }
+
+        @Override
+        public void contribute(ScoredNetwork scoredNetwork, CompiledScore.Builder builder) {
+            if (scoredNetwork.attributes != null
+                    && scoredNetwork.attributes.getBoolean(
+                            ScoredNetwork.ATTRIBUTES_KEY_HAS_CAPTIVE_PORTAL)) {
+                builder.addConstant(-mPenalty);
+            }
+        }
+    }
+
+    /** A bonus depending on the candidate's band. */
+    public static final class BandFactor implements Factor {
+        private final int mBand24GHzBonus;
+        private final int mBand5GHzBonus;
+
+        public BandFactor(int band24GHzBonus, int band5GHzBonus) {
+            mBand24GHzBonus = band24GHzBonus;
+            mBand5GHzBonus = band5GHzBonus;
+        }
+
+        @Override
+        public void contribute(ScoredNetwork scoredNetwork, CompiledScore.Builder builder) {
+            builder.addBandBonus(mBand24GHzBonus, mBand5GHzBonus);
+        }
+    }
+}
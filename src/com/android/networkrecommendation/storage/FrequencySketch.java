@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.networkrecommendation.storage;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Approximate access frequency of network keys: a count-min sketch of 4-bit counters, used as
+ * the TinyLFU admission filter for {@link ScoreIndex}.
+ *
+ * <p>All counters are halved once the number of increments reaches ten times the table width, so
+ * frequencies reflect recent history rather than all time.
+ *
+ * <p>Safe for concurrent use without locking, since accesses are recorded from binder threads,
+ * the ranking pool and the provider thread at once. Each word of counters is updated by
+ * compare-and-set, so no increment is lost, and the halving replaces each word atomically, so an
+ * increment lands either before or after the halving of its word and is never undone by it. Only
+ * one thread halves the table per sample.
+ */
+public final class FrequencySketch {
+    private static final long[] SEEDS = {
+        0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L
+    };
+    private static final long RESET_MASK = 0x7777777777777777L;
+    private static final int MIN_SIZE = 16;
+
+    private final AtomicLongArray mTable;
+    private final int mSampleSize;
+    private final AtomicInteger mAdditions = new AtomicInteger();
+
+    /** @param maximumSize the number of entries whose frequency should be tracked accurately. */
+    public FrequencySketch(int maximumSize) {
+        int size = Integer.highestOneBit(Math.max(maximumSize, MIN_SIZE) - 1) << 1;
+        mTable = new AtomicLongArray(size);
+        mSampleSize = 10 * size;
+    }
+
+    /** Returns a key for the given ssid and packed bssid, ignoring quotes around the ssid. */
+    public static long keyOf(String ssid, long bssid) {
+        return bssid * 0x9e3779b97f4a7c15L + ScoreIndex.ssidHash(ssid);
+    }
+
+    /** Returns the estimated number of recent accesses of the key, up to 15. */
+    public int frequency(long key) {
+        int hash = spread(key);
+        int start = (hash & 3) << 2;
+        int frequency = Integer.MAX_VALUE;
+        for (int i = 0; i < 4; i++) {
+            int index = indexOf(hash, i);
+            int count = (int) ((mTable.get(index) >>> ((start + i) << 2)) & 0xfL);
+            frequency = Math.min(frequency, count);
+        }
+        return frequency;
+    }
+
+    /** Record an access of the key. */
+    public void increment(long key) {
+        int hash = spread(key);
+        int start = (hash & 3) << 2;
+        boolean added = false;
+        for (int i = 0; i < 4; i++) {
+            added |= incrementAt(indexOf(hash, i), start + i);
+        }
+        if (!added) {
+            return;
+        }
+        int additions = mAdditions.incrementAndGet();
+        // Taking the halved sample's additions off the count claims the reset, so concurrent
+        // increments reset once per sample however they interleave.
+        if (additions >= mSampleSize
+                && mAdditions.compareAndSet(additions, additions - mSampleSize / 2)) {
+            reset();
+        }
+    }
+
+    private boolean incrementAt(int index, int counter) {
+        int offset = counter << 2;
+        long mask = 0xfL << offset;
+        while (true) {
+            long value = mTable.get(index);
+            if ((value & mask) == mask) {
+                return false;
+            }
+            if (mTable.compareAndSet(index, value, value + (1L << offset))) {
+                return true;
+            }
+        }
+    }
+
+    private void reset() {
+        for (int i = 0; i < mTable.length(); i++) {
+            long value;
+            do {
+                value = mTable.get(i);
+            } while (!mTable.compareAndSet(i, value, (value >>> 1) & RESET_MASK));
+        }
+    }
+
+    private int indexOf(int hash, int i) {
+        long h = (hash + SEEDS[i]) * SEEDS[i];
+        h += h >>> 32;
+        return ((int) h) & (mTable.length() - 1);
+    }
+
+    private static int spread(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        return (int) key;
+    }
+}
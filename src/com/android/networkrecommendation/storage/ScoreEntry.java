@@ -0,0 +1,65 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.networkrecommendation.storage;
+
+import android.net.ScoredNetwork;
+
+import com.android.networkrecommendation.scoring.CompiledScore;
+import com.android.networkrecommendation.scoring.ScoringPipeline;
+
+/** An immutable {@link ScoredNetwork} as held in storage, along with when it was stored. */
+public final class ScoreEntry {
+    public final ScoredNetwork scoredNetwork;
+
+    /** The {@link System#currentTimeMillis()} at which the score was stored. */
+    public final long updatedMillis;
+
+    /**
+     * The score compiled under the last pipeline it was requested for. Written racily by readers:
+     * the holder is immutable, and a lost write only costs a recompilation.
+     */
+    private Compiled mCompiled;
+
+    public ScoreEntry(ScoredNetwork scoredNetwork, long updatedMillis) {
+        this.scoredNetwork = scoredNetwork;
+        this.updatedMillis = updatedMillis;
+    }
+
+    /** Returns true if this score was stored before {@code notBefore}. */
+    public boolean isExpired(long notBefore) {
+        return updatedMillis < notBefore;
+    }
+
+    /** Returns this score compiled under the given pipeline, compiling it on first use. */
+    public CompiledScore getCompiledScore(ScoringPipeline pipeline) {
+        Compiled compiled = mCompiled;
+        if (compiled == null || compiled.mPipeline != pipeline) {
+            compiled = new Compiled(pipeline, pipeline.compile(scoredNetwork));
+            mCompiled = compiled;
+        }
+        return compiled.mScore;
+    }
+
+    private static final class Compiled {
+        final ScoringPipeline mPipeline;
+        final CompiledScore mScore;
+
+        Compiled(ScoringPipeline pipeline, CompiledScore score) {
+            mPipeline = pipeline;
+            mScore = score;
+        }
+    }
+}
@@ -0,0 +1,492 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.networkrecommendation.storage;
+
+import static com.android.networkrecommendation.Constants.TAG;
+
+import android.net.NetworkKey;
+import android.net.RssiCurve;
+import android.net.ScoredNetwork;
+import android.net.WifiKey;
+import android.os.Bundle;
+import android.support.annotation.Nullable;
+import android.util.AtomicFile;
+
+import com.android.networkrecommendation.util.Blog;
+import com.android.networkrecommendation.util.BssidUtil;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Compact binary file of {@link ScoreEntry}s which is memory mapped rather than parsed, so
+ * stored scores can be served as soon as the file is opened.
+ *
+ * <p>Layout, big endian:
+ *
+ * <pre>
+ * header:  int magic, int version, int recordCount, int indexOffset
+ * records: short ssidLength, byte[ssidLength] utf8Ssid, long packedBssid, long updatedMillis,
+ *          byte flags, [curve rssiCurve if FLAG_HAS_CURVE],
+ *          [curve badgingCurve if FLAG_HAS_BADGE]
+ * curve:   int start, int bucketWidth, int activeNetworkRssiBoost, short bucketCount,
+ *          byte[bucketCount] buckets
+ * index:   recordCount x (int ssidHash, int recordOffset, long packedBssid),
+ *          sorted by ssidHash then packedBssid
+ * </pre>
+ *
+ * <p>Files are replaced atomically through {@link AtomicFile}. A file with an unknown magic or
+ * version is ignored and overwritten by the next write. Version 2 files, written before scores
+ * without a curve could be stored, are still read.
+ */
+public final class ScoreFile {
+    private static final int MAGIC = 0x4e525343; // "NRSC"
+    private static final int VERSION = 3;
+    /** Last version in which every record had an rssiCurve, and so no FLAG_HAS_CURVE. */
+    private static final int VERSION_ALWAYS_HAS_CURVE = 2;
+    private static final int HEADER_SIZE = 16;
+    private static final int INDEX_ENTRY_SIZE = 16;
+
+    private static final int FLAG_METERED = 1;
+    private static final int FLAG_HAS_CAPTIVE_PORTAL = 1 << 1;
+    private static final int FLAG_CAPTIVE_PORTAL = 1 << 2;
+    private static final int FLAG_HAS_BADGE = 1 << 3;
+    /** Clear for scores without an {@link ScoredNetwork#rssiCurve}, which are kept unscored. */
+    private static final int FLAG_HAS_CURVE = 1 << 4;
+
+    private final AtomicFile mFile;
+
+    public ScoreFile(File file) {
+        mFile = new AtomicFile(file);
+    }
+
+    /**
+     * Memory map the current file.
+     *
+     * @return the mapped scores, or null if there is no usable file.
+     */
+    @Nullable
+    public Mapping map() {
+        try (FileInputStream in = mFile.openRead()) {
+            return map(in);
+        } catch (FileNotFoundException e) {
+            return null;
+        } catch (IOException | RuntimeException e) {
+            Blog.w(TAG, e, "Ignoring unreadable score file.");
+            return null;
+        }
+    }
+
+    /**
+     * Memory map a score file which is not managed by a {@link ScoreFile}, such as one supplied
+     * for import. Unlike {@link #map()}, never restores, renames or deletes a backup of it.
+     *
+     * @return the mapped scores, or null if the file is not a usable score file.
+     */
+    @Nullable
+    public static Mapping map(File file) throws IOException {
+        try (FileInputStream in = new FileInputStream(file)) {
+            return map(in);
+        }
+    }
+
+    private static Mapping map(FileInputStream in) throws IOException {
+        FileChannel channel = in.getChannel();
+        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        // The mapping stays valid after the channel is closed.
+        return Mapping.create(buffer);
+    }
+
+    /** Atomically replace the file with the given scores. */
+    public void write(Collection<ScoreEntry> scoreEntries) throws IOException {
+        ByteBuffer buffer = encode(scoreEntries);
+        FileOutputStream out = mFile.startWrite();
+        try {
+            out.write(buffer.array(), 0, buffer.limit());
+            mFile.finishWrite(out);
+        } catch (IOException e) {
+            mFile.failWrite(out);
+            throw e;
+        }
+    }
+
+    /** Returns true if the stream starts like a score file. Consumes the first bytes. */
+    public static boolean hasScoreFileMagic(InputStream in) throws IOException {
+        DataInputStream dataIn = new DataInputStream(in);
+        try {
+            return dataIn.readInt() == MAGIC;
+        } catch (EOFException e) {
+            return false;
+        }
+    }
+
+    /** Delete the file and any backup of it. */
+    public void delete() {
+        mFile.delete();
+    }
+
+    private static ByteBuffer encode(Collection<ScoreEntry> scoreEntries) {
+        int count = scoreEntries.size();
+        byte[][] ssids = new byte[count][];
+        int recordsSize = 0;
+        int i = 0;
+        for (ScoreEntry scoreEntry : scoreEntries) {
+            ScoredNetwork scoredNetwork = scoreEntry.scoredNetwork;
+            ssids[i] = scoredNetwork.networkKey.wifiKey.ssid.getBytes(StandardCharsets.UTF_8);
+            recordsSize += recordSize(ssids[i], scoredNetwork);
+            i++;
+        }
+        int indexOffset = HEADER_SIZE + recordsSize;
+        ByteBuffer buffer = ByteBuffer.allocate(indexOffset + count * INDEX_ENTRY_SIZE);
+        buffer.putInt(MAGIC).putInt(VERSION).putInt(count).putInt(indexOffset);
+
+        IndexEntry[] index = new IndexEntry[count];
+        i = 0;
+        for (ScoreEntry scoreEntry : scoreEntries) {
+            ScoredNetwork scoredNetwork = scoreEntry.scoredNetwork;
+            long bssid = BssidUtil.pack(scoredNetwork.networkKey.wifiKey.bssid);
+            index[i] =
+                    new IndexEntry(
+                            ScoreIndex.ssidHash(scoredNetwork.networkKey.wifiKey.ssid),
+                            buffer.position(),
+                            bssid);
+            RssiCurve badge = badgingCurve(scoredNetwork);
+            Boolean captivePortal = captivePortal(scoredNetwork);
+            int flags = 0;
+            if (scoredNetwork.meteredHint) {
+                flags |= FLAG_METERED;
+            }
+            if (captivePortal != null) {
+                flags |= FLAG_HAS_CAPTIVE_PORTAL;
+                if (captivePortal) {
+                    flags |= FLAG_CAPTIVE_PORTAL;
+                }
+            }
+            if (badge != null) {
+                flags |= FLAG_HAS_BADGE;
+            }
+            if (scoredNetwork.rssiCurve != null) {
+                flags |= FLAG_HAS_CURVE;
+            }
+            buffer.putShort((short) ssids[i].length).put(ssids[i]).putLong(bssid);
+            buffer.putLong(scoreEntry.updatedMillis).put((byte) flags);
+            if (scoredNetwork.rssiCurve != null) {
+                putCurve(buffer, scoredNetwork.rssiCurve);
+            }
+            if (badge != null) {
+                putCurve(buffer, badge);
+            }
+            i++;
+        }
+
+        Arrays.sort(index);
+        for (IndexEntry entry : index) {
+            buffer.putInt(entry.mSsidHash).putInt(entry.mOffset).putLong(entry.mBssid);
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    private static int recordSize(byte[] ssid, ScoredNetwork scoredNetwork) {
+        RssiCurve badge = badgingCurve(scoredNetwork);
+        return 2 + ssid.length + 8 + 8 + 1
+                + curveSize(scoredNetwork.rssiCurve)
+                + curveSize(badge);
+    }
+
+    private static int curveSize(@Nullable RssiCurve curve) {
+        return curve != null ? 4 + 4 + 4 + 2 + curve.rssiBuckets.length : 0;
+    }
+
+    private static void putCurve(ByteBuffer buffer, RssiCurve curve) {
+        buffer.putInt(curve.start)
+                .putInt(curve.bucketWidth)
+                .putInt(curve.activeNetworkRssiBoost)
+                .putShort((short) curve.rssiBuckets.length)
+                .put(curve.rssiBuckets);
+    }
+
+    private static RssiCurve getCurve(ByteBuffer buffer) {
+        int start = buffer.getInt();
+        int bucketWidth = buffer.getInt();
+        int activeNetworkRssiBoost = buffer.getInt();
+        byte[] buckets = new byte[buffer.getShort()];
+        buffer.get(buckets);
+        return new RssiCurve(start, bucketWidth, buckets, activeNetworkRssiBoost);
+    }
+
+    @Nullable
+    private static RssiCurve badgingCurve(ScoredNetwork scoredNetwork) {
+        if (scoredNetwork.attributes == null) {
+            return null;
+        }
+        return scoredNetwork.attributes.getParcelable(ScoredNetwork.ATTRIBUTES_KEY_BADGING_CURVE);
+    }
+
+    @Nullable
+    private static Boolean captivePortal(ScoredNetwork scoredNetwork) {
+        if (scoredNetwork.attributes == null
+                || !scoredNetwork.attributes.containsKey(
+                        ScoredNetwork.ATTRIBUTES_KEY_HAS_CAPTIVE_PORTAL)) {
+            return null;
+        }
+        return scoredNetwork.attributes.getBoolean(ScoredNetwork.ATTRIBUTES_KEY_HAS_CAPTIVE_PORTAL);
+    }
+
+    private static final class IndexEntry implements Comparable<IndexEntry> {
+        final int mSsidHash;
+        final int mOffset;
+        final long mBssid;
+
+        IndexEntry(int ssidHash, int offset, long bssid) {
+            mSsidHash = ssidHash;
+            mOffset = offset;
+            mBssid = bssid;
+        }
+
+        @Override
+        public int compareTo(IndexEntry other) {
+            int result = Integer.compare(mSsidHash, other.mSsidHash);
+            return result != 0 ? result : Long.compare(mBssid, other.mBssid);
+        }
+    }
+
+    /**
+     * Read only view of a mapped score file. Lookups binary search the sorted index and decode
+     * only the matching record. Decoded records are kept, so that repeated lookups return the
+     * same {@link ScoreEntry} and reuse its compiled score. Safe for concurrent use.
+     */
+    public static final class Mapping {
+        private final ByteBuffer mBuffer;
+        private final int mCount;
+        private final int mIndexOffset;
+        private final boolean mAlwaysHasCurve;
+        /** Decoded records by index entry. Racy: a lost write only costs decoding again. */
+        private final AtomicReferenceArray<ScoreEntry> mDecoded;
+
+        private Mapping(ByteBuffer buffer, int count, int indexOffset, boolean alwaysHasCurve) {
+            mBuffer = buffer;
+            mCount = count;
+            mIndexOffset = indexOffset;
+            mAlwaysHasCurve = alwaysHasCurve;
+            mDecoded = new AtomicReferenceArray<>(count);
+        }
+
+        @Nullable
+        static Mapping create(ByteBuffer buffer) {
+            if (buffer.limit() < HEADER_SIZE || buffer.getInt(0) != MAGIC) {
+                Blog.w(TAG, "Ignoring score file with bad magic.");
+                return null;
+            }
+            int version = buffer.getInt(4);
+            if (version != VERSION && version != VERSION_ALWAYS_HAS_CURVE) {
+                Blog.i(TAG, "Ignoring score file with version %d.", version);
+                return null;
+            }
+            int count = buffer.getInt(8);
+            int indexOffset = buffer.getInt(12);
+            if (count < 0
+                    || indexOffset < HEADER_SIZE
+                    || (long) indexOffset + (long) count * INDEX_ENTRY_SIZE != buffer.limit()) {
+                Blog.w(TAG, "Ignoring truncated score file.");
+                return null;
+            }
+            // Records are checked as they are decoded, so mapping costs the same for any size.
+            return new Mapping(
+                    buffer, count, indexOffset, version == VERSION_ALWAYS_HAS_CURVE);
+        }
+
+        /**
+         * Returns where the record at {@code offset} ends, or -1 if it would extend past
+         * {@code limit}. Reads only lengths and flags.
+         */
+        private static int recordEnd(
+                ByteBuffer buffer, int offset, int limit, boolean alwaysHasCurve) {
+            if (offset + 2 > limit) {
+                return -1;
+            }
+            int ssidLength = buffer.getShort(offset);
+            int flagsOffset = offset + 2 + ssidLength + 8 + 8;
+            if (ssidLength < 0 || flagsOffset + 1 > limit) {
+                return -1;
+            }
+            int flags = buffer.get(flagsOffset);
+            int end = flagsOffset + 1;
+            if (alwaysHasCurve || (flags & FLAG_HAS_CURVE) != 0) {
+                end = curveEnd(buffer, end, limit);
+            }
+            if (end >= 0 && (flags & FLAG_HAS_BADGE) != 0) {
+                end = curveEnd(buffer, end, limit);
+            }
+            return end;
+        }
+
+        private static int curveEnd(ByteBuffer buffer, int offset, int limit) {
+            int countOffset = offset + 4 + 4 + 4;
+            if (countOffset + 2 > limit) {
+                return -1;
+            }
+            int bucketCount = buffer.getShort(countOffset);
+            int end = countOffset + 2 + bucketCount;
+            return bucketCount >= 0 && end <= limit ? end : -1;
+        }
+
+        /** Number of stored scores. */
+        public int size() {
+            return mCount;
+        }
+
+        /** Returns the score stored for exactly this SSID and packed BSSID, or null. */
+        @Nullable
+        public ScoreEntry get(String ssid, long bssid) {
+            if (ssid == null || bssid == BssidUtil.INVALID) {
+                return null;
+            }
+            int ssidHash = ScoreIndex.ssidHash(ssid);
+            int low = 0;
+            int high = mCount - 1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                int entryOffset = mIndexOffset + mid * INDEX_ENTRY_SIZE;
+                int entryHash = mBuffer.getInt(entryOffset);
+                int result = Integer.compare(entryHash, ssidHash);
+                if (result == 0) {
+                    result = Long.compare(mBuffer.getLong(entryOffset + 8), bssid);
+                }
+                if (result < 0) {
+                    low = mid + 1;
+                } else if (result > 0) {
+                    high = mid - 1;
+                } else {
+                    return findMatchingSsid(mid, ssid, ssidHash, bssid);
+                }
+            }
+            return null;
+        }
+
+        /** Decodes every stored score, skipping undecodable records. */
+        public List<ScoreEntry> values() {
+            List<ScoreEntry> values = new ArrayList<>(mCount);
+            for (int i = 0; i < mCount; i++) {
+                ScoreEntry scoreEntry = entryAt(i);
+                if (scoreEntry != null) {
+                    values.add(scoreEntry);
+                }
+            }
+            return values;
+        }
+
+        /** Index entries may share a hash and bssid across SSIDs; check each neighbour. */
+        @Nullable
+        private ScoreEntry findMatchingSsid(int found, String ssid, int ssidHash, long bssid) {
+            int first = found;
+            while (first > 0 && sameKey(first - 1, ssidHash, bssid)) {
+                first--;
+            }
+            for (int i = first; i < mCount && sameKey(i, ssidHash, bssid); i++) {
+                ScoreEntry scoreEntry = entryAt(i);
+                if (scoreEntry == null) {
+                    continue;
+                }
+                String storedSsid = scoreEntry.scoredNetwork.networkKey.wifiKey.ssid;
+                if (ScoreIndex.ssidEquals(storedSsid, ssid)) {
+                    return scoreEntry;
+                }
+            }
+            return null;
+        }
+
+        private boolean sameKey(int entry, int ssidHash, long bssid) {
+            int entryOffset = mIndexOffset + entry * INDEX_ENTRY_SIZE;
+            return mBuffer.getInt(entryOffset) == ssidHash
+                    && mBuffer.getLong(entryOffset + 8) == bssid;
+        }
+
+        /**
+         * Returns the record of the given index entry, decoding it on first use, or null if it
+         * is corrupt: if it would extend past the records, or holds, say, an SSID that {@link
+         * WifiKey} rejects.
+         */
+        @Nullable
+        private ScoreEntry entryAt(int entry) {
+            ScoreEntry scoreEntry = mDecoded.get(entry);
+            if (scoreEntry == null) {
+                int offset = mBuffer.getInt(mIndexOffset + entry * INDEX_ENTRY_SIZE + 4);
+                if (offset < HEADER_SIZE
+                        || recordEnd(mBuffer, offset, mIndexOffset, mAlwaysHasCurve) < 0) {
+                    Blog.w(TAG, "Skipping truncated score record at %d.", offset);
+                    return null;
+                }
+                try {
+                    scoreEntry = decode(offset);
+                } catch (RuntimeException e) {
+                    Blog.w(TAG, e, "Skipping corrupt score record at %d.", offset);
+                    return null;
+                }
+                mDecoded.lazySet(entry, scoreEntry);
+            }
+            return scoreEntry;
+        }
+
+        private ScoreEntry decode(int offset) {
+            // Work on a duplicate so concurrent readers do not share a position.
+            ByteBuffer buffer = mBuffer.duplicate();
+            buffer.position(offset);
+            byte[] ssid = new byte[buffer.getShort()];
+            buffer.get(ssid);
+            long bssid = buffer.getLong();
+            long updatedMillis = buffer.getLong();
+            int flags = buffer.get();
+            RssiCurve rssiCurve = mAlwaysHasCurve || (flags & FLAG_HAS_CURVE) != 0
+                    ? getCurve(buffer)
+                    : null;
+            Bundle attributes = new Bundle();
+            if ((flags & FLAG_HAS_CAPTIVE_PORTAL) != 0) {
+                attributes.putBoolean(
+                        ScoredNetwork.ATTRIBUTES_KEY_HAS_CAPTIVE_PORTAL,
+                        (flags & FLAG_CAPTIVE_PORTAL) != 0);
+            }
+            if ((flags & FLAG_HAS_BADGE) != 0) {
+                attributes.putParcelable(
+                        ScoredNetwork.ATTRIBUTES_KEY_BADGING_CURVE, getCurve(buffer));
+            }
+            NetworkKey networkKey =
+                    new NetworkKey(
+                            new WifiKey(
+                                    new String(ssid, StandardCharsets.UTF_8),
+                                    BssidUtil.unpack(bssid)));
+            return new ScoreEntry(
+                    new ScoredNetwork(
+                            networkKey, rssiCurve, (flags & FLAG_METERED) != 0, attributes),
+                    updatedMillis);
+        }
+    }
+}
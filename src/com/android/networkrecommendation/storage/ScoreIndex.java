@@ -0,0 +1,598 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.networkrecommendation.storage;
+
+import android.net.NetworkKey;
+import android.net.ScoredNetwork;
+import android.support.annotation.Nullable;
+
+import com.android.networkrecommendation.util.BssidUtil;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Two level hash index of {@link ScoreEntry}s: SSID to an {@link SsidEntry} holding the wildcard
+ * score for that SSID plus an open addressing table of per-BSSID scores.
+ *
+ * <p>Lookups take the SSID exactly as it appears in either a {@link android.net.WifiKey} (quoted)
+ * or a {@link android.net.wifi.ScanResult} (unquoted) and a BSSID packed with {@link
+ * BssidUtil#pack}, so resolving a scan result does not allocate. A single SSID probe yields both
+ * the exact match and the wildcard fallback.
+ *
+ * <p>Not thread safe for writes. Once an index has been published to readers it must not be
+ * mutated again; writers {@link #copy} it, update the copy and publish that instead. Concurrent
+ * reads of an unchanging index are safe. Copies share every {@link SsidEntry} they do not modify,
+ * and update in place the ones they already copied, so a batch of writes to one copy copies each
+ * SSID's table at most once.
+ */
+public final class ScoreIndex {
+    private static final int MIN_CAPACITY = 16;
+
+    private int[] mSsidHashes;
+    /** Canonical (unquoted) SSIDs. A null entry marks an empty slot. */
+    private String[] mSsids;
+    private SsidEntry[] mEntries;
+    private int mSsidCount;
+    private int mSize;
+    /** Marks the {@link SsidEntry}s this index, and no other, may update in place. */
+    private final Object mOwner = new Object();
+
+    public ScoreIndex() {
+        allocate(MIN_CAPACITY);
+    }
+
+    private ScoreIndex(ScoreIndex other) {
+        mSsidHashes = other.mSsidHashes.clone();
+        mSsids = other.mSsids.clone();
+        mEntries = other.mEntries.clone();
+        mSsidCount = other.mSsidCount;
+        mSize = other.mSize;
+    }
+
+    /** Returns an independent copy of this index which may be mutated freely. */
+    public ScoreIndex copy() {
+        return new ScoreIndex(this);
+    }
+
+    /** Number of stored scores, wildcard scores included. */
+    public int size() {
+        return mSize;
+    }
+
+    /**
+     * Store a score, replacing any existing score for the same SSID and BSSID.
+     *
+     * @throws IllegalArgumentException if the score's BSSID cannot be packed.
+     */
+    public void put(ScoreEntry scoreEntry) {
+        ScoredNetwork scoredNetwork = scoreEntry.scoredNetwork;
+        String ssid = scoredNetwork.networkKey.wifiKey.ssid;
+        long bssid = BssidUtil.pack(scoredNetwork.networkKey.wifiKey.bssid);
+        if (bssid == BssidUtil.INVALID) {
+            throw new IllegalArgumentException(
+                    "Invalid bssid: " + scoredNetwork.networkKey.wifiKey.bssid);
+        }
+        int ssidHash = ssidHash(ssid);
+        int slot = findSlot(ssid, ssidHash);
+        SsidEntry entry = mEntries[slot];
+        if (entry == null) {
+            entry = SsidEntry.EMPTY;
+            mSsidHashes[slot] = ssidHash;
+            mSsids[slot] = canonicalSsid(ssid);
+            mSsidCount++;
+        }
+        int previousSize = entry.size();
+        SsidEntry updated = entry.with(mOwner, bssid, scoreEntry);
+        mSize += updated.size() - previousSize;
+        mEntries[slot] = updated;
+        if (mSsidCount * 2 > mEntries.length) {
+            rehash(mEntries.length * 2);
+        }
+    }
+
+    /**
+     * Remove the score stored for exactly this SSID and packed BSSID.
+     *
+     * @return true if a score was removed.
+     */
+    public boolean remove(String ssid, long bssid) {
+        if (ssid == null) {
+            return false;
+        }
+        int slot = findSlot(ssid, ssidHash(ssid));
+        SsidEntry entry = mEntries[slot];
+        if (entry == null) {
+            return false;
+        }
+        int previousSize = entry.size();
+        SsidEntry updated = entry.without(mOwner, bssid);
+        if (updated.size() == previousSize) {
+            return false;
+        }
+        mSize += updated.size() - previousSize;
+        if (updated.size() == 0) {
+            removeSlot(slot);
+        } else {
+            mEntries[slot] = updated;
+        }
+        return true;
+    }
+
+    /**
+     * Remove every score stored before {@code notBefore}.
+     *
+     * @return the number of scores removed.
+     */
+    public int removeExpired(long notBefore) {
+        List<ScoreEntry> expired = new ArrayList<>();
+        for (int i = 0; i < mEntries.length; i++) {
+            if (mEntries[i] != null) {
+                mEntries[i].addExpiredTo(notBefore, expired);
+            }
+        }
+        for (int i = 0; i < expired.size(); i++) {
+            NetworkKey key = expired.get(i).scoredNetwork.networkKey;
+            remove(key.wifiKey.ssid, BssidUtil.pack(key.wifiKey.bssid));
+        }
+        return expired.size();
+    }
+
+    /** Returns the entry stored for exactly this SSID and packed BSSID, or null. */
+    @Nullable
+    public ScoreEntry get(String ssid, long bssid) {
+        SsidEntry entry = findEntry(ssid);
+        if (entry == null || bssid == BssidUtil.INVALID) {
+            return null;
+        }
+        return bssid == BssidUtil.WILDCARD ? entry.mWildcard : entry.get(bssid);
+    }
+
+    /**
+     * Returns the entry stored for this SSID and packed BSSID, falling back to the SSID's
+     * wildcard entry. Entries stored before {@code notBefore} are ignored. The returned score is
+     * not rekeyed to the requested BSSID.
+     */
+    @Nullable
+    public ScoreEntry resolve(String ssid, long bssid, long notBefore) {
+        SsidEntry entry = findEntry(ssid);
+        if (entry == null) {
+            return null;
+        }
+        ScoreEntry scoreEntry = entry.get(bssid);
+        if (scoreEntry != null && !scoreEntry.isExpired(notBefore)) {
+            return scoreEntry;
+        }
+        scoreEntry = entry.mWildcard;
+        return scoreEntry != null && !scoreEntry.isExpired(notBefore) ? scoreEntry : null;
+    }
+
+    /**
+     * Returns the score for the given key, or a score synthesized from the SSID's wildcard score
+     * and keyed by {@code key}. Entries stored before {@code notBefore} are ignored. Synthetic
+     * scores are cached with the wildcard score they were built from, so repeated lookups of the
+     * same BSSID do not allocate.
+     */
+    @Nullable
+    public ScoredNetwork resolve(NetworkKey key, long notBefore) {
+        SsidEntry entry = findEntry(key.wifiKey.ssid);
+        if (entry == null) {
+            return null;
+        }
+        long bssid = BssidUtil.pack(key.wifiKey.bssid);
+        if (bssid != BssidUtil.WILDCARD) {
+            ScoreEntry scoreEntry = entry.get(bssid);
+            if (scoreEntry != null && !scoreEntry.isExpired(notBefore)) {
+                return scoreEntry.scoredNetwork;
+            }
+        }
+        if (entry.mWildcard == null || entry.mWildcard.isExpired(notBefore)) {
+            return null;
+        }
+        if (bssid == BssidUtil.WILDCARD) {
+            return entry.mWildcard.scoredNetwork;
+        }
+        return entry.synthesize(key, bssid);
+    }
+
+    /**
+     * Returns a pseudo-randomly chosen entry, or null if the index is empty. Used to sample
+     * eviction candidates without maintaining an ordering.
+     */
+    @Nullable
+    public ScoreEntry sample(Random random) {
+        if (mSize == 0) {
+            return null;
+        }
+        int mask = mEntries.length - 1;
+        int slot = random.nextInt(mEntries.length);
+        while (mEntries[slot] == null) {
+            slot = (slot + 1) & mask;
+        }
+        return mEntries[slot].sample(random);
+    }
+
+    /** Remove all scores. */
+    public void clear() {
+        allocate(MIN_CAPACITY);
+        mSsidCount = 0;
+        mSize = 0;
+    }
+
+    /** Returns a copy of all stored entries, in no particular order. */
+    public List<ScoreEntry> entries() {
+        List<ScoreEntry> entries = new ArrayList<>(mSize);
+        for (int i = 0; i < mEntries.length; i++) {
+            if (mEntries[i] != null) {
+                mEntries[i].addEntriesTo(entries);
+            }
+        }
+        return entries;
+    }
+
+    @Nullable
+    private SsidEntry findEntry(String ssid) {
+        if (ssid == null) {
+            return null;
+        }
+        return mEntries[findSlot(ssid, ssidHash(ssid))];
+    }
+
+    /**
+     * Returns the slot holding the SSID, or the empty slot where it would be inserted. The table
+     * is never full, so probing always terminates.
+     */
+    private int findSlot(String ssid, int ssidHash) {
+        int mask = mEntries.length - 1;
+        int slot = spread(ssidHash) & mask;
+        while (true) {
+            String slotSsid = mSsids[slot];
+            if (slotSsid == null) {
+                return slot;
+            }
+            if (mSsidHashes[slot] == ssidHash && canonicalSsidEquals(slotSsid, ssid)) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    /** Empty a slot, shifting back later entries of its probe sequence so lookups still work. */
+    private void removeSlot(int slot) {
+        int mask = mEntries.length - 1;
+        int hole = slot;
+        int i = (hole + 1) & mask;
+        while (mSsids[i] != null) {
+            int home = spread(mSsidHashes[i]) & mask;
+            // Move the entry into the hole unless its home lies cyclically within (hole, i].
+            boolean homeInRange = hole <= i ? (hole < home && home <= i) : (hole < home || home <= i);
+            if (!homeInRange) {
+                mSsidHashes[hole] = mSsidHashes[i];
+                mSsids[hole] = mSsids[i];
+                mEntries[hole] = mEntries[i];
+                hole = i;
+            }
+            i = (i + 1) & mask;
+        }
+        mSsids[hole] = null;
+        mEntries[hole] = null;
+        mSsidCount--;
+    }
+
+    private void rehash(int capacity) {
+        int[] ssidHashes = mSsidHashes;
+        String[] ssids = mSsids;
+        SsidEntry[] entries = mEntries;
+        allocate(capacity);
+        int mask = capacity - 1;
+        for (int i = 0; i < entries.length; i++) {
+            if (ssids[i] == null) {
+                continue;
+            }
+            int slot = spread(ssidHashes[i]) & mask;
+            while (mSsids[slot] != null) {
+                slot = (slot + 1) & mask;
+            }
+            mSsidHashes[slot] = ssidHashes[i];
+            mSsids[slot] = ssids[i];
+            mEntries[slot] = entries[i];
+        }
+    }
+
+    private void allocate(int capacity) {
+        mSsidHashes = new int[capacity];
+        mSsids = new String[capacity];
+        mEntries = new SsidEntry[capacity];
+    }
+
+    private static int spread(int hash) {
+        hash ^= hash >>> 16;
+        hash *= 0x85ebca6b;
+        hash ^= hash >>> 13;
+        return hash;
+    }
+
+    private static int mix(long bssid) {
+        // Murmur3 finalizer so sequential BSSIDs from the same vendor spread across the table.
+        bssid ^= bssid >>> 33;
+        bssid *= 0xff51afd7ed558ccdL;
+        bssid ^= bssid >>> 33;
+        return (int) bssid;
+    }
+
+    /** Hash of the SSID with any surrounding quotes ignored. */
+    static int ssidHash(String ssid) {
+        int start = canonicalStart(ssid);
+        int end = canonicalEnd(ssid);
+        int hash = 0;
+        for (int i = start; i < end; i++) {
+            hash = 31 * hash + ssid.charAt(i);
+        }
+        return hash;
+    }
+
+    /** Compares a canonical SSID against a possibly quoted one, without allocating. */
+    static boolean canonicalSsidEquals(String canonical, String ssid) {
+        int start = canonicalStart(ssid);
+        int length = canonicalEnd(ssid) - start;
+        return canonical.length() == length && ssid.regionMatches(start, canonical, 0, length);
+    }
+
+    /** Compares two possibly quoted SSIDs, ignoring surrounding quotes, without allocating. */
+    static boolean ssidEquals(String a, String b) {
+        int startA = canonicalStart(a);
+        int lengthA = canonicalEnd(a) - startA;
+        int startB = canonicalStart(b);
+        return canonicalEnd(b) - startB == lengthA && a.regionMatches(startA, b, startB, lengthA);
+    }
+
+    static String canonicalSsid(String ssid) {
+        return ssid.substring(canonicalStart(ssid), canonicalEnd(ssid));
+    }
+
+    private static boolean isQuoted(String ssid) {
+        int length = ssid.length();
+        return length > 1 && ssid.charAt(0) == '"' && ssid.charAt(length - 1) == '"';
+    }
+
+    private static int canonicalStart(String ssid) {
+        return isQuoted(ssid) ? 1 : 0;
+    }
+
+    private static int canonicalEnd(String ssid) {
+        return isQuoted(ssid) ? ssid.length() - 1 : ssid.length();
+    }
+
+    /**
+     * Scores for one SSID: the wildcard entry, an open addressing table of per-BSSID entries and
+     * a direct mapped cache of scores synthesized from the wildcard.
+     *
+     * <p>An entry is only ever mutated by the index owning it, and only until that index is
+     * published. Any other index first takes a copy, which it then owns. A batch of changes to an
+     * unpublished index therefore copies each SSID's table at most once.
+     */
+    private static final class SsidEntry {
+        static final SsidEntry EMPTY =
+                new SsidEntry(null /* owner */, null, new long[0], new ScoreEntry[0], 0, null);
+
+        /** Must be a power of two. */
+        private static final int SYNTHETIC_CACHE_SIZE = 32;
+        /** Must be a power of two. */
+        private static final int MIN_BSSID_CAPACITY = 4;
+
+        /** The token of the index allowed to mutate this entry, or null if none is. */
+        @Nullable private final Object mOwner;
+        @Nullable ScoreEntry mWildcard;
+        private long[] mBssids;
+        /** A null entry marks an empty slot. */
+        private ScoreEntry[] mValues;
+        private int mBssidCount;
+        /**
+         * Scores synthesized from {@link #mWildcard}. Written racily by readers: a slot holds
+         * either null or a fully constructed score, and a lost write only costs a recomputation.
+         * Shared with copies, and replaced rather than cleared when the wildcard changes.
+         */
+        @Nullable private ScoredNetwork[] mSynthetic;
+
+        private SsidEntry(
+                @Nullable Object owner,
+                @Nullable ScoreEntry wildcard,
+                long[] bssids,
+                ScoreEntry[] values,
+                int bssidCount,
+                @Nullable ScoredNetwork[] synthetic) {
+            mOwner = owner;
+            mWildcard = wildcard;
+            mBssids = bssids;
+            mValues = values;
+            mBssidCount = bssidCount;
+            mSynthetic = synthetic;
+        }
+
+        int size() {
+            return mBssidCount + (mWildcard != null ? 1 : 0);
+        }
+
+        @Nullable
+        ScoreEntry get(long bssid) {
+            if (mBssidCount == 0 || bssid == BssidUtil.INVALID) {
+                return null;
+            }
+            return mValues[findSlot(bssid)];
+        }
+
+        ScoredNetwork synthesize(NetworkKey key, long bssid) {
+            int slot = mix(bssid) & (SYNTHETIC_CACHE_SIZE - 1);
+            ScoredNetwork cached = mSynthetic[slot];
+            if (cached != null && key.equals(cached.networkKey)) {
+                return cached;
+            }
+            ScoredNetwork wildcard = mWildcard.scoredNetwork;
+            ScoredNetwork synthetic =
+                    new ScoredNetwork(
+                            key, wildcard.rssiCurve, wildcard.meteredHint, wildcard.attributes);
+            mSynthetic[slot] = synthetic;
+            return synthetic;
+        }
+
+        /**
+         * Returns a roughly uniformly chosen entry. Probes from a random slot as the index does,
+         * rather than counting through the table, so that sampling a large SSID is cheap.
+         */
+        ScoreEntry sample(Random random) {
+            if (mWildcard != null && (mBssidCount == 0 || random.nextInt(size()) == 0)) {
+                return mWildcard;
+            }
+            int mask = mValues.length - 1;
+            int slot = random.nextInt(mValues.length);
+            while (mValues[slot] == null) {
+                slot = (slot + 1) & mask;
+            }
+            return mValues[slot];
+        }
+
+        /**
+         * Returns this entry with the given score added or replaced: this entry itself if
+         * {@code owner} owns it, otherwise a copy owned by {@code owner}.
+         */
+        SsidEntry with(Object owner, long bssid, ScoreEntry scoreEntry) {
+            SsidEntry entry = mutableFor(owner);
+            if (bssid == BssidUtil.WILDCARD) {
+                entry.mWildcard = scoreEntry;
+                // A new wildcard invalidates every synthetic score built from the old one.
+                entry.mSynthetic = new ScoredNetwork[SYNTHETIC_CACHE_SIZE];
+            } else {
+                entry.putBssid(bssid, scoreEntry);
+            }
+            return entry;
+        }
+
+        /**
+         * Returns this entry without the given score, as in {@link #with}, or this entry
+         * unchanged if the score is absent.
+         */
+        SsidEntry without(Object owner, long bssid) {
+            if (bssid == BssidUtil.WILDCARD) {
+                if (mWildcard == null) {
+                    return this;
+                }
+                SsidEntry entry = mutableFor(owner);
+                entry.mWildcard = null;
+                entry.mSynthetic = null;
+                return entry;
+            }
+            if (get(bssid) == null) {
+                return this;
+            }
+            SsidEntry entry = mutableFor(owner);
+            entry.removeBssid(bssid);
+            return entry;
+        }
+
+        private SsidEntry mutableFor(Object owner) {
+            if (mOwner == owner) {
+                return this;
+            }
+            // Per-BSSID changes leave the wildcard, and so the synthetic cache, valid.
+            return new SsidEntry(
+                    owner, mWildcard, mBssids.clone(), mValues.clone(), mBssidCount, mSynthetic);
+        }
+
+        private void putBssid(long bssid, ScoreEntry scoreEntry) {
+            if (get(bssid) == null && (mBssidCount + 1) * 2 > mValues.length) {
+                resize(Math.max(MIN_BSSID_CAPACITY, mValues.length * 2));
+            }
+            int slot = findSlot(bssid);
+            if (mValues[slot] == null) {
+                mBssids[slot] = bssid;
+                mBssidCount++;
+            }
+            mValues[slot] = scoreEntry;
+        }
+
+        /** Empty the BSSID's slot, shifting back later entries of its probe sequence. */
+        private void removeBssid(long bssid) {
+            int mask = mValues.length - 1;
+            int hole = findSlot(bssid);
+            int i = (hole + 1) & mask;
+            while (mValues[i] != null) {
+                int home = mix(mBssids[i]) & mask;
+                // Move the entry into the hole unless its home lies cyclically within (hole, i].
+                boolean homeInRange =
+                        hole <= i ? (hole < home && home <= i) : (hole < home || home <= i);
+                if (!homeInRange) {
+                    mBssids[hole] = mBssids[i];
+                    mValues[hole] = mValues[i];
+                    hole = i;
+                }
+                i = (i + 1) & mask;
+            }
+            mBssids[hole] = 0;
+            mValues[hole] = null;
+            mBssidCount--;
+        }
+
+        /**
+         * Returns the slot holding the BSSID, or the empty slot where it would be inserted. The
+         * table is never full, so probing always terminates.
+         */
+        private int findSlot(long bssid) {
+            int mask = mValues.length - 1;
+            int slot = mix(bssid) & mask;
+            while (mValues[slot] != null && mBssids[slot] != bssid) {
+                slot = (slot + 1) & mask;
+            }
+            return slot;
+        }
+
+        private void resize(int capacity) {
+            long[] bssids = mBssids;
+            ScoreEntry[] values = mValues;
+            mBssids = new long[capacity];
+            mValues = new ScoreEntry[capacity];
+            for (int i = 0; i < values.length; i++) {
+                if (values[i] != null) {
+                    int slot = findSlot(bssids[i]);
+                    mBssids[slot] = bssids[i];
+                    mValues[slot] = values[i];
+                }
+            }
+        }
+
+        void addEntriesTo(List<ScoreEntry> out) {
+            if (mWildcard != null) {
+                out.add(mWildcard);
+            }
+            for (int i = 0; i < mValues.length; i++) {
+                if (mValues[i] != null) {
+                    out.add(mValues[i]);
+                }
+            }
+        }
+
+        void addExpiredTo(long notBefore, List<ScoreEntry> out) {
+            if (mWildcard != null && mWildcard.isExpired(notBefore)) {
+                out.add(mWildcard);
+            }
+            for (int i = 0; i < mValues.length; i++) {
+                if (mValues[i] != null && mValues[i].isExpired(notBefore)) {
+                    out.add(mValues[i]);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.networkrecommendation.util;
+
+import android.support.annotation.Nullable;
+
+/** Helpers for working with BSSIDs packed into the low 48 bits of a long. */
+public final class BssidUtil {
+
+    /** Packed form of the wildcard BSSID "00:00:00:00:00:00". */
+    public static final long WILDCARD = 0L;
+
+    /** Returned by {@link #pack} for malformed input. Never a valid packed BSSID. */
+    public static final long INVALID = -1L;
+
+    private static final int BSSID_LENGTH = 17;
+
+    /**
+     * Pack a BSSID of the form "aa:bb:cc:dd:ee:ff" (any hex case) into a long without allocating.
+     *
+     * @return the packed BSSID, or {@link #INVALID} if the string is not a well formed BSSID.
+     */
+    public static long pack(@Nullable String bssid) {
+        if (bssid == null || bssid.length() != BSSID_LENGTH) {
+            return INVALID;
+        }
+        long packed = 0;
+        for (int i = 0; i < BSSID_LENGTH; i++) {
+            char c = bssid.charAt(i);
+            if (i % 3 == 2) {
+                if (c != ':') {
+                    return INVALID;
+                }
+                continue;
+            }
+            int nibble = Character.digit(c, 16);
+            if (nibble < 0) {
+                return INVALID;
+            }
+            packed = (packed << 4) | nibble;
+        }
+        return packed;
+    }
+
+    /** Format a packed BSSID back into its lower case "aa:bb:cc:dd:ee:ff" form. */
+    public static String unpack(long packed) {
+        char[] out = new char[BSSID_LENGTH];
+        for (int octet = 0; octet < 6; octet++) {
+            int value = (int) (packed >>> (8 * (5 - octet))) & 0xFF;
+            out[octet * 3] = Character.forDigit(value >>> 4, 16);
+            out[octet * 3 + 1] = Character.forDigit(value & 0xF, 16);
+            if (octet < 5) {
+                out[octet * 3 + 2] = ':';
+            }
+        }
+        return new String(out);
+    }
+
+    // Can't instantiate.
+    private BssidUtil() {}
+}
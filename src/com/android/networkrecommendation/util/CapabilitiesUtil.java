@@ -0,0 +1,96 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.networkrecommendation.util;
+
+import android.support.annotation.Nullable;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Classifies {@link android.net.wifi.ScanResult#capabilities} strings into bitmasks.
+ *
+ * <p>A device only ever sees a handful of distinct capabilities strings, so each one is parsed
+ * once and its flags cached; classifying a scan result is then a map lookup and bit tests instead
+ * of repeated substring searches.
+ */
+public final class CapabilitiesUtil {
+    /** The capabilities mention PSK. */
+    public static final int FLAG_PSK = 1;
+    /** The capabilities mention EAP. */
+    public static final int FLAG_EAP = 1 << 1;
+    /** The capabilities mention WEP. */
+    public static final int FLAG_WEP = 1 << 2;
+    /** The capabilities include the [ESS] element. */
+    public static final int FLAG_ESS = 1 << 3;
+    /** The capabilities are exactly "[ESS]": an open access point with no other features. */
+    public static final int FLAG_ESS_ONLY = 1 << 4;
+
+    private static final int SECURITY_FLAGS = FLAG_PSK | FLAG_EAP | FLAG_WEP;
+
+    /** Bounds the cache should a misbehaving driver report many distinct strings. */
+    private static final int MAX_CACHE_SIZE = 256;
+
+    private static final ConcurrentHashMap<String, Integer> sFlags = new ConcurrentHashMap<>();
+
+    /** Returns the flags for the given capabilities string. Null capabilities have no flags. */
+    public static int getFlags(@Nullable String capabilities) {
+        if (capabilities == null) {
+            return 0;
+        }
+        Integer flags = sFlags.get(capabilities);
+        if (flags == null) {
+            if (sFlags.size() >= MAX_CACHE_SIZE) {
+                sFlags.clear();
+            }
+            flags = parse(capabilities);
+            sFlags.put(capabilities, flags);
+        }
+        return flags;
+    }
+
+    /** Returns true if the flags describe a network without PSK, EAP or WEP security. */
+    public static boolean isOpen(int flags) {
+        return (flags & SECURITY_FLAGS) == 0;
+    }
+
+    /** Returns true if the flags describe an open access point with no other capabilities. */
+    public static boolean isOpenEss(int flags) {
+        return (flags & FLAG_ESS_ONLY) != 0;
+    }
+
+    private static int parse(String capabilities) {
+        int flags = 0;
+        if (capabilities.contains("PSK")) {
+            flags |= FLAG_PSK;
+        }
+        if (capabilities.contains("EAP")) {
+            flags |= FLAG_EAP;
+        }
+        if (capabilities.contains("WEP")) {
+            flags |= FLAG_WEP;
+        }
+        if (capabilities.contains("[ESS]")) {
+            flags |= FLAG_ESS;
+            if (capabilities.length() == "[ESS]".length()) {
+                flags |= FLAG_ESS_ONLY;
+            }
+        }
+        return flags;
+    }
+
+    // Can't instantiate.
+    private CapabilitiesUtil() {}
+}
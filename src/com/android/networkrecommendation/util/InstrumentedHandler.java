@@ -0,0 +1,305 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.networkrecommendation.util;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Message;
+import android.os.SystemClock;
+import android.util.ArrayMap;
+import android.util.PrintWriterPrinter;
+
+import java.io.PrintWriter;
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.concurrent.GuardedBy;
+
+/**
+ * A {@link Handler} which measures how long its messages wait in the queue and how long each
+ * kind of message takes to run, and captures the stack of any message running over budget.
+ *
+ * <p>Each handler has a watchdog thread which sleeps until the current message's budget runs out
+ * and then captures the looper thread's stack, so a message which never returns is reported too.
+ * Dispatching costs no timer: the watchdog is only woken when a message starts while it is idle,
+ * and it exits once the handler has been idle for a while.
+ *
+ * <p>Messages are named by {@link #named}, or else after their callback's class, or their target
+ * and {@code what}. Lambdas are named after the class declaring them, since the generated class
+ * names change from build to build. Broadcasts delivered through a handler all share one
+ * framework callback class, so receivers should call {@link #nameCurrentMessage} to tell them
+ * apart.
+ */
+public class InstrumentedHandler extends Handler {
+    private static final String TAG = "InstrumentedHandler";
+
+    /** Number of slow messages whose stacks are kept. */
+    private static final int MAX_SLOW_MESSAGES = 4;
+
+    /** How long an idle watchdog waits for another message before its thread exits. */
+    private static final long WATCHDOG_KEEP_ALIVE_MILLIS = TimeUnit.SECONDS.toMillis(10);
+
+    /** The handler dispatching a message on the current thread, if any. */
+    private static final ThreadLocal<InstrumentedHandler> sDispatching = new ThreadLocal<>();
+
+    private final String mName;
+    private final long mBudgetMillis;
+    private final LatencyHistogram mQueueTime;
+    private final LatencyHistogram mRunTime;
+    private final Object mLock = new Object();
+    @GuardedBy("mLock")
+    private final ArrayMap<String, MessageStats> mStats = new ArrayMap<>();
+    @GuardedBy("mLock")
+    private final ArrayDeque<String> mSlowMessages = new ArrayDeque<>();
+
+    /** Name of the message being dispatched, or null between messages. */
+    @GuardedBy("mLock")
+    private String mCurrentName;
+    /** The {@link SystemClock#uptimeMillis} at which the current message started. */
+    @GuardedBy("mLock")
+    private long mCurrentStartMillis;
+    /** Number of messages dispatched, telling the watchdog which message is running. */
+    @GuardedBy("mLock")
+    private long mDispatchCount;
+    /** The dispatch whose stack was last captured, so each message is captured at most once. */
+    @GuardedBy("mLock")
+    private long mCapturedDispatch;
+    /** The watchdog thread, or null while none is running. */
+    @GuardedBy("mLock")
+    private Thread mWatchdog;
+    /** True while the watchdog waits for a message to start, rather than for one to overrun. */
+    @GuardedBy("mLock")
+    private boolean mWatchdogIdle;
+
+    /**
+     * @param budgetMillis messages running longer than this have their stack captured. Zero or
+     *     less disables the watchdog.
+     */
+    public InstrumentedHandler(Looper looper, String name, long budgetMillis) {
+        super(looper);
+        mName = name;
+        mBudgetMillis = budgetMillis;
+        mQueueTime = new LatencyHistogram(name + " queue time");
+        mRunTime = new LatencyHistogram(name + " run time");
+    }
+
+    /**
+     * Returns a runnable which runs the given one and is dispatched under the given name, for
+     * posting to an instrumented handler.
+     */
+    public static Runnable named(String name, Runnable runnable) {
+        return new NamedRunnable(name, runnable);
+    }
+
+    /**
+     * Name the message being dispatched on the current thread, if an instrumented handler is
+     * dispatching it. Otherwise does nothing.
+     */
+    public static void nameCurrentMessage(String name) {
+        InstrumentedHandler handler = sDispatching.get();
+        if (handler != null) {
+            synchronized (handler.mLock) {
+                handler.mCurrentName = name;
+            }
+        }
+    }
+
+    @Override
+    public void dispatchMessage(Message msg) {
+        final long start = SystemClock.uptimeMillis();
+        // Delayed messages only count from when they were due.
+        mQueueTime.record(TimeUnit.MILLISECONDS.toNanos(Math.max(0, start - msg.getWhen())));
+        final String defaultName = nameOf(msg);
+        synchronized (mLock) {
+            mCurrentName = defaultName;
+            mCurrentStartMillis = start;
+            mDispatchCount++;
+            if (mBudgetMillis > 0) {
+                wakeWatchdogLocked();
+            }
+        }
+        final InstrumentedHandler outer = sDispatching.get();
+        sDispatching.set(this);
+        final long startNanos = SystemClock.elapsedRealtimeNanos();
+        try {
+            super.dispatchMessage(msg);
+        } finally {
+            final long runNanos = SystemClock.elapsedRealtimeNanos() - startNanos;
+            sDispatching.set(outer);
+            mRunTime.record(runNanos);
+            synchronized (mLock) {
+                MessageStats stats = mStats.get(mCurrentName);
+                if (stats == null) {
+                    stats = new MessageStats();
+                    mStats.put(mCurrentName, stats);
+                }
+                stats.add(runNanos);
+                mCurrentName = null;
+            }
+        }
+    }
+
+    public void dump(PrintWriter writer) {
+        writer.println("Handler " + mName + ":");
+        writer.println("  " + mQueueTime);
+        writer.println("  " + mRunTime);
+        synchronized (mLock) {
+            for (int i = 0; i < mStats.size(); i++) {
+                writer.println("  " + mStats.keyAt(i) + ": " + mStats.valueAt(i));
+            }
+            for (String slowMessage : mSlowMessages) {
+                writer.println("  Slow message: " + slowMessage);
+            }
+        }
+        // Prints every queued message and the queue depth.
+        getLooper().dump(new PrintWriterPrinter(writer), "  ");
+    }
+
+    @GuardedBy("mLock")
+    private void wakeWatchdogLocked() {
+        if (mWatchdog == null) {
+            mWatchdog = new Thread(this::runWatchdog, mName + "Watchdog");
+            mWatchdog.setDaemon(true);
+            mWatchdog.start();
+        } else if (mWatchdogIdle) {
+            mLock.notify();
+        }
+    }
+
+    /** Runs on the watchdog thread until the handler has been idle for the keep-alive time. */
+    private void runWatchdog() {
+        while (true) {
+            final long dispatch;
+            synchronized (mLock) {
+                try {
+                    if (mCurrentName == null || mCapturedDispatch == mDispatchCount) {
+                        // Nothing to watch until the next message starts.
+                        final long idleSince = mDispatchCount;
+                        mWatchdogIdle = true;
+                        mLock.wait(WATCHDOG_KEEP_ALIVE_MILLIS);
+                        mWatchdogIdle = false;
+                        if (mDispatchCount == idleSince) {
+                            mWatchdog = null;
+                            return;
+                        }
+                        continue;
+                    }
+                    final long remaining =
+                            mCurrentStartMillis + mBudgetMillis - SystemClock.uptimeMillis();
+                    if (remaining > 0) {
+                        // If the message finishes first, the next one is checked on waking.
+                        mLock.wait(remaining);
+                        continue;
+                    }
+                } catch (InterruptedException e) {
+                    mWatchdogIdle = false;
+                    mWatchdog = null;
+                    return;
+                }
+                dispatch = mDispatchCount;
+                mCapturedDispatch = dispatch;
+            }
+            captureSlowMessage(dispatch);
+        }
+    }
+
+    /** Runs on the watchdog thread once a message has run for its whole budget. */
+    private void captureSlowMessage(long dispatch) {
+        final StackTraceElement[] stack = getLooper().getThread().getStackTrace();
+        final StringBuilder sb = new StringBuilder();
+        synchronized (mLock) {
+            if (mCurrentName == null || mDispatchCount != dispatch) {
+                // Finished while the stack was being captured; it may belong to another message.
+                return;
+            }
+            sb.append(mCurrentName).append(" over ").append(mBudgetMillis).append("ms budget");
+            for (StackTraceElement element : stack) {
+                sb.append("\n    at ").append(element);
+            }
+            if (mSlowMessages.size() == MAX_SLOW_MESSAGES) {
+                mSlowMessages.removeFirst();
+            }
+            mSlowMessages.addLast(sb.toString());
+        }
+        Blog.w(TAG, "%s: %s", mName, sb);
+    }
+
+    private static String nameOf(Message msg) {
+        final Runnable callback = msg.getCallback();
+        if (callback instanceof NamedRunnable) {
+            return ((NamedRunnable) callback).mName;
+        }
+        if (callback != null) {
+            return nameOf(callback.getClass());
+        }
+        return msg.getTarget().getClass().getName() + " what=" + msg.what;
+    }
+
+    /**
+     * Returns the class name, or for a lambda, the name of the class declaring it: javac names
+     * lambdas {@code Outer$$Lambda$12/0x...} and desugaring {@code pkg.-$$Lambda$Outer$hash}.
+     */
+    private static String nameOf(Class<?> callbackClass) {
+        final String className = callbackClass.getName();
+        final int lambda = className.indexOf("$$Lambda$");
+        if (lambda < 0) {
+            return className;
+        }
+        String declaringClass = className.substring(0, lambda);
+        if (declaringClass.endsWith("-")) {
+            final int outerStart = lambda + "$$Lambda$".length();
+            final int outerEnd = className.indexOf('$', outerStart);
+            declaringClass = declaringClass.substring(0, declaringClass.length() - 1)
+                    + className.substring(outerStart,
+                            outerEnd < 0 ? className.length() : outerEnd);
+        }
+        return declaringClass + " lambda";
+    }
+
+    private static final class NamedRunnable implements Runnable {
+        final String mName;
+        final Runnable mRunnable;
+
+        NamedRunnable(String name, Runnable runnable) {
+            mName = name;
+            mRunnable = runnable;
+        }
+
+        @Override
+        public void run() {
+            mRunnable.run();
+        }
+    }
+
+    private static final class MessageStats {
+        private long mCount;
+        private long mTotalNanos;
+        private long mMaxNanos;
+
+        void add(long nanos) {
+            mCount++;
+            mTotalNanos += nanos;
+            mMaxNanos = Math.max(mMaxNanos, nanos);
+        }
+
+        @Override
+        public String toString() {
+            return "count=" + mCount
+                    + " mean=" + (mTotalNanos / mCount / 1000) + "us"
+                    + " max=" + (mMaxNanos / 1000) + "us";
+        }
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.networkrecommendation.util;
+
+import android.os.SystemClock;
+
+import java.io.PrintWriter;
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.concurrent.GuardedBy;
+
+/**
+ * Runs tasks one at a time on a serial executor, always preferring tasks of a more urgent lane.
+ *
+ * <p>Tasks are queued here rather than on the underlying executor, which only ever holds one
+ * pending dispatch. A task queued behind a long queue of less urgent ones therefore waits for at
+ * most the task currently running. Long tasks can shorten that wait further by checking {@link
+ * #hasWaiting} at convenient points and requeueing their remainder with {@link #executeFirst}.
+ *
+ * <p>Every task runs inside the same dispatch, so each names itself to {@link
+ * InstrumentedHandler#nameCurrentMessage} for the handler's per-message stats.
+ */
+public final class PriorityLaneExecutor {
+    /** Latency critical work, such as recommendation requests. */
+    public static final int LANE_URGENT = 0;
+    /** Bulk work, such as score requests. */
+    public static final int LANE_BULK = 1;
+    private static final String[] LANE_NAMES = {"urgent", "bulk"};
+    private static final int LANE_COUNT = LANE_NAMES.length;
+
+    private final Executor mExecutor;
+    private final Object mLock = new Object();
+    @GuardedBy("mLock")
+    private final ArrayDeque<Task>[] mQueues;
+    @GuardedBy("mLock")
+    private boolean mDispatchPending;
+    @GuardedBy("mLock")
+    private final int[] mMaxDepths = new int[LANE_COUNT];
+    /** Queue depths, readable without the lock so that running tasks can poll them cheaply. */
+    private final AtomicInteger[] mDepths = new AtomicInteger[LANE_COUNT];
+    private final LatencyHistogram[] mWaitTimes = new LatencyHistogram[LANE_COUNT];
+
+    /** @param executor a serial executor, such as a {@link android.os.Handler}'s post. */
+    @SuppressWarnings("unchecked")
+    public PriorityLaneExecutor(Executor executor) {
+        mExecutor = executor;
+        mQueues = new ArrayDeque[LANE_COUNT];
+        for (int i = 0; i < LANE_COUNT; i++) {
+            mQueues[i] = new ArrayDeque<>();
+            mDepths[i] = new AtomicInteger();
+            mWaitTimes[i] = new LatencyHistogram(LANE_NAMES[i] + " wait");
+        }
+    }
+
+    /**
+     * Queue a task at the back of a lane.
+     *
+     * @param name the name the task is measured under by an {@link InstrumentedHandler}.
+     */
+    public void execute(int lane, String name, Runnable runnable) {
+        enqueue(lane, name, runnable, false /* first */);
+    }
+
+    /** Queue a task at the front of a lane, for instance to resume preempted work. */
+    public void executeFirst(int lane, String name, Runnable runnable) {
+        enqueue(lane, name, runnable, true /* first */);
+    }
+
+    /** Returns an executor queueing tasks in the given lane, all under the given name. */
+    public Executor lane(int lane, String name) {
+        return runnable -> execute(lane, name, runnable);
+    }
+
+    /** Returns true if tasks are waiting in the given lane. */
+    public boolean hasWaiting(int lane) {
+        return mDepths[lane].get() > 0;
+    }
+
+    public void dump(PrintWriter writer) {
+        synchronized (mLock) {
+            for (int i = 0; i < LANE_COUNT; i++) {
+                writer.println("Lane " + LANE_NAMES[i] + ": depth=" + mQueues[i].size()
+                        + " maxDepth=" + mMaxDepths[i]);
+                writer.println("  " + mWaitTimes[i]);
+            }
+        }
+    }
+
+    private void enqueue(int lane, String name, Runnable runnable, boolean first) {
+        Task task = new Task(name, runnable, lane, SystemClock.elapsedRealtimeNanos());
+        synchronized (mLock) {
+            if (first) {
+                mQueues[lane].addFirst(task);
+            } else {
+                mQueues[lane].addLast(task);
+            }
+            mMaxDepths[lane] = Math.max(mMaxDepths[lane], mQueues[lane].size());
+            mDepths[lane].incrementAndGet();
+            if (mDispatchPending) {
+                return;
+            }
+            mDispatchPending = true;
+        }
+        mExecutor.execute(this::runNext);
+    }
+
+    /** Run the most urgent task, then dispatch again if any remain. */
+    private void runNext() {
+        Task task = null;
+        synchronized (mLock) {
+            for (int i = 0; i < LANE_COUNT && task == null; i++) {
+                task = mQueues[i].pollFirst();
+            }
+            if (task == null) {
+                mDispatchPending = false;
+                return;
+            }
+            mDepths[task.mLane].decrementAndGet();
+        }
+        mWaitTimes[task.mLane].record(SystemClock.elapsedRealtimeNanos() - task.mQueuedNanos);
+        InstrumentedHandler.nameCurrentMessage(task.mName);
+        try {
+            task.mRunnable.run();
+        } finally {
+            // Dispatch one task per message so other work on the executor is not starved.
+            boolean more;
+            synchronized (mLock) {
+                more = false;
+                for (int i = 0; i < LANE_COUNT && !more; i++) {
+                    more = !mQueues[i].isEmpty();
+                }
+                mDispatchPending = more;
+            }
+            if (more) {
+                mExecutor.execute(this::runNext);
+            }
+        }
+    }
+
+    private static final class Task {
+        final String mName;
+        final Runnable mRunnable;
+        final int mLane;
+        final long mQueuedNanos;
+
+        Task(String name, Runnable runnable, int lane, long queuedNanos) {
+            mName = name;
+            mRunnable = runnable;
+            mLane = lane;
+            mQueuedNanos = queuedNanos;
+        }
+    }
+}
@@ -37,7 +37,8 @@ public class ScanResultUtil {
      * checks if the provided capabilities string contains PSK encryption type or not.
      */
     public static boolean isScanResultForPskNetwork(ScanResult scanResult) {
-        return scanResult.capabilities.contains("PSK");
+        return (CapabilitiesUtil.getFlags(scanResult.capabilities) & CapabilitiesUtil.FLAG_PSK)
+                != 0;
     }
 
     /**
@@ -45,7 +46,8 @@ public class ScanResultUtil {
      * checks if the provided capabilities string contains EAP encryption type or not.
      */
     public static boolean isScanResultForEapNetwork(ScanResult scanResult) {
-        return scanResult.capabilities.contains("EAP");
+        return (CapabilitiesUtil.getFlags(scanResult.capabilities) & CapabilitiesUtil.FLAG_EAP)
+                != 0;
     }
 
     /**
@@ -53,7 +55,8 @@ public class ScanResultUtil {
      * checks if the provided capabilities string contains WEP encryption type or not.
      */
     public static boolean isScanResultForWepNetwork(ScanResult scanResult) {
-        return scanResult.capabilities.contains("WEP");
+        return (CapabilitiesUtil.getFlags(scanResult.capabilities) & CapabilitiesUtil.FLAG_WEP)
+                != 0;
     }
 
     /**
@@ -62,9 +65,15 @@ public class ScanResultUtil {
      * encryption types or not.
      */
     public static boolean isScanResultForOpenNetwork(ScanResult scanResult) {
-        return !(isScanResultForWepNetwork(scanResult)
-                || isScanResultForPskNetwork(scanResult)
-                || isScanResultForEapNetwork(scanResult));
+        return CapabilitiesUtil.isOpen(CapabilitiesUtil.getFlags(scanResult.capabilities));
+    }
+
+    /**
+     * Helper method to check if the provided |scanResult| is an open access point advertising no
+     * capabilities other than [ESS].
+     */
+    public static boolean isScanResultForOpenEssNetwork(ScanResult scanResult) {
+        return CapabilitiesUtil.isOpenEss(CapabilitiesUtil.getFlags(scanResult.capabilities));
     }
 
     /** Create a {@link NetworkKey} from a ScanResult, properly quoting the SSID. */
@@ -130,19 +139,20 @@ public class ScanResultUtil {
         // Add the double quotes to the scan result SSID for comparison with the network configs.
         String configSSID = quoteSsid(scanResult.SSID);
         if (TextUtils.equals(config.SSID, configSSID)) {
-            if (ScanResultUtil.isScanResultForPskNetwork(scanResult)
+            final int flags = CapabilitiesUtil.getFlags(scanResult.capabilities);
+            if ((flags & CapabilitiesUtil.FLAG_PSK) != 0
                     && WifiConfigurationUtil.isConfigForPskNetwork(config)) {
                 return true;
             }
-            if (ScanResultUtil.isScanResultForEapNetwork(scanResult)
+            if ((flags & CapabilitiesUtil.FLAG_EAP) != 0
                     && WifiConfigurationUtil.isConfigForEapNetwork(config)) {
                 return true;
             }
-            if (ScanResultUtil.isScanResultForWepNetwork(scanResult)
+            if ((flags & CapabilitiesUtil.FLAG_WEP) != 0
                     && WifiConfigurationUtil.isConfigForWepNetwork(config)) {
                 return true;
             }
-            if (ScanResultUtil.isScanResultForOpenNetwork(scanResult)
+            if (CapabilitiesUtil.isOpen(flags)
                     && WifiConfigurationUtil.isConfigForOpenNetwork(config)) {
                 return true;
             }
@@ -0,0 +1,89 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.networkrecommendation.util;
+
+import android.os.SystemClock;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.annotation.concurrent.GuardedBy;
+
+/**
+ * A timeline of startup phases, measured from the trace's creation. Phases may be recorded from
+ * any thread, and may overlap when they run on different threads.
+ *
+ * <pre>
+ * long start = SystemClock.elapsedRealtimeNanos();
+ * ...
+ * trace.record("provider", start);
+ * </pre>
+ */
+public final class StartupTrace {
+    private final long mOriginNanos = SystemClock.elapsedRealtimeNanos();
+    private final Object mLock = new Object();
+    @GuardedBy("mLock")
+    private final List<Phase> mPhases = new ArrayList<>();
+
+    /**
+     * Record a phase which started at the given time and ends now.
+     *
+     * @param startNanos the {@link SystemClock#elapsedRealtimeNanos} at which the phase started.
+     */
+    public void record(String name, long startNanos) {
+        Phase phase = new Phase(name, Thread.currentThread().getName(),
+                startNanos - mOriginNanos, SystemClock.elapsedRealtimeNanos() - startNanos);
+        synchronized (mLock) {
+            mPhases.add(phase);
+        }
+    }
+
+    /** Record a phase with no duration, such as the arrival of an event. */
+    public void mark(String name) {
+        record(name, SystemClock.elapsedRealtimeNanos());
+    }
+
+    public void dump(PrintWriter writer) {
+        writer.println("Startup:");
+        synchronized (mLock) {
+            for (int i = 0; i < mPhases.size(); i++) {
+                writer.println("  " + mPhases.get(i));
+            }
+        }
+    }
+
+    private static final class Phase {
+        final String mName;
+        final String mThreadName;
+        final long mOffsetNanos;
+        final long mDurationNanos;
+
+        Phase(String name, String threadName, long offsetNanos, long durationNanos) {
+            mName = name;
+            mThreadName = threadName;
+            mOffsetNanos = offsetNanos;
+            mDurationNanos = durationNanos;
+        }
+
+        /** Returns "+offset name took duration [thread]", in microseconds. */
+        @Override
+        public String toString() {
+            return "+" + (mOffsetNanos / 1000) + "us " + mName
+                    + " took " + (mDurationNanos / 1000) + "us [" + mThreadName + "]";
+        }
+    }
+}
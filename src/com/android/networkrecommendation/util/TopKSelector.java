@@ -0,0 +1,170 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.networkrecommendation.util;
+
+import android.support.annotation.Nullable;
+
+/**
+ * Keeps the k highest scoring of a stream of scored indices, in O(log k) per offer, using a
+ * bounded min-heap whose root is the worst retained candidate.
+ *
+ * <p>Among equal scores the lowest index ranks higher, whatever the order of offers, so with k = 1
+ * the result is the same as a linear scan keeping the first maximum. Selectors over disjoint
+ * ranges of indices can therefore be filled independently and {@link #merge merged}.
+ *
+ * <p>Optionally candidates are grouped, and only the best candidate of each group is kept, in
+ * O(k) per offer.
+ */
+public final class TopKSelector {
+    private final int[] mScores;
+    private final int[] mIndices;
+    @Nullable private final int[] mGroups;
+    private int mSize;
+
+    /** @param k the number of candidates to keep. Must be positive. */
+    public TopKSelector(int k) {
+        this(k, null);
+    }
+
+    /**
+     * @param k the number of candidates to keep. Must be positive.
+     * @param groups the group of each index, or null to keep every candidate. Candidates of the
+     *     same group have equal values here.
+     */
+    public TopKSelector(int k, @Nullable int[] groups) {
+        if (k <= 0) {
+            throw new IllegalArgumentException("k must be positive: " + k);
+        }
+        mScores = new int[k];
+        mIndices = new int[k];
+        mGroups = groups;
+    }
+
+    /** The groups this selector was created with, or null. */
+    @Nullable
+    public int[] groups() {
+        return mGroups;
+    }
+
+    /** The number of candidates this selector keeps. */
+    public int capacity() {
+        return mScores.length;
+    }
+
+    /** Number of candidates currently retained. */
+    public int size() {
+        return mSize;
+    }
+
+    /** Offer a candidate. */
+    public void offer(int score, int index) {
+        if (mGroups != null) {
+            int slot = findGroup(mGroups[index]);
+            if (slot >= 0) {
+                if (score > mScores[slot] || (score == mScores[slot] && index < mIndices[slot])) {
+                    mScores[slot] = score;
+                    mIndices[slot] = index;
+                    siftDown(slot);
+                }
+                return;
+            }
+        }
+        if (mSize < mScores.length) {
+            mScores[mSize] = score;
+            mIndices[mSize] = index;
+            siftUp(mSize++);
+        } else if (score > mScores[0] || (score == mScores[0] && index < mIndices[0])) {
+            mScores[0] = score;
+            mIndices[0] = index;
+            siftDown(0);
+        }
+    }
+
+    /** Offer every candidate retained by another selector. */
+    public void merge(TopKSelector other) {
+        for (int i = 0; i < other.mSize; i++) {
+            offer(other.mScores[i], other.mIndices[i]);
+        }
+    }
+
+    /** Returns the retained indices, best first. Empties the selector. */
+    public int[] drainIndices() {
+        int[] indices = new int[mSize];
+        for (int i = indices.length - 1; i >= 0; i--) {
+            indices[i] = mIndices[0];
+            mSize--;
+            mScores[0] = mScores[mSize];
+            mIndices[0] = mIndices[mSize];
+            siftDown(0);
+        }
+        return indices;
+    }
+
+    /** Returns the slot holding a candidate of the group, or -1. */
+    private int findGroup(int group) {
+        for (int i = 0; i < mSize; i++) {
+            if (mGroups[mIndices[i]] == group) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /** Returns true if slot a ranks below slot b. */
+    private boolean worse(int a, int b) {
+        if (mScores[a] != mScores[b]) {
+            return mScores[a] < mScores[b];
+        }
+        return mIndices[a] > mIndices[b];
+    }
+
+    private void siftUp(int slot) {
+        while (slot > 0) {
+            int parent = (slot - 1) >>> 1;
+            if (!worse(slot, parent)) {
+                return;
+            }
+            swap(slot, parent);
+            slot = parent;
+        }
+    }
+
+    private void siftDown(int slot) {
+        while (true) {
+            int child = 2 * slot + 1;
+            if (child >= mSize) {
+                return;
+            }
+            if (child + 1 < mSize && worse(child + 1, child)) {
+                child++;
+            }
+            if (!worse(child, slot)) {
+                return;
+            }
+            swap(slot, child);
+            slot = child;
+        }
+    }
+
+    private void swap(int a, int b) {
+        int score = mScores[a];
+        mScores[a] = mScores[b];
+        mScores[b] = score;
+        int index = mIndices[a];
+        mIndices[a] = mIndices[b];
+        mIndices[b] = index;
+    }
+}
@@ -23,7 +23,6 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.database.ContentObserver;
-import android.net.wifi.ScanResult;
 import android.net.wifi.WifiConfiguration;
 import android.net.wifi.WifiManager;
 import android.os.Handler;
@@ -37,8 +36,12 @@ import android.util.ArraySet;
 import com.android.networkrecommendation.config.G;
 import com.android.networkrecommendation.config.Preferences;
 import com.android.networkrecommendation.config.WideAreaNetworks;
+import com.android.networkrecommendation.scan.ScanRecord;
+import com.android.networkrecommendation.scan.ScanResultHub;
+import com.android.networkrecommendation.scan.ScanSnapshot;
 import com.android.networkrecommendation.scoring.util.HashUtil;
 import com.android.networkrecommendation.util.Blog;
+import com.android.networkrecommendation.util.InstrumentedHandler;
 import com.android.networkrecommendation.util.RoboCompatUtil;
 import com.android.networkrecommendation.util.WifiConfigurationUtil;
 import java.io.FileDescriptor;
@@ -70,6 +73,8 @@ public class WifiWakeupController {
     private final WifiWakeupNetworkSelector mWifiWakeupNetworkSelector;
     private final Handler mHandler;
     private final WifiWakeupHelper mWifiWakeupHelper;
+    private final ScanResultHub mScanResultHub;
+    private final ScanResultHub.Listener mScanListener = this::handleScanResultsAvailable;
     private final AtomicBoolean mStarted;
     @VisibleForTesting final ContentObserver mContentObserver;
 
@@ -94,11 +99,13 @@ public class WifiWakeupController {
             PowerManager powerManager,
             UserManager userManager,
             WifiWakeupNetworkSelector wifiWakeupNetworkSelector,
-            WifiWakeupHelper wifiWakeupHelper) {
+            WifiWakeupHelper wifiWakeupHelper,
+            ScanResultHub scanResultHub) {
         mContext = context;
         mContentResolver = contentResolver;
         mHandler = handler;
         mWifiWakeupHelper = wifiWakeupHelper;
+        mScanResultHub = scanResultHub;
         mStarted = new AtomicBoolean(false);
         mWifiManager = wifiManager;
         mPowerManager = powerManager;
@@ -133,15 +140,14 @@ public class WifiWakeupController {
             new BroadcastReceiver() {
                 @Override
                 public void onReceive(Context context, Intent intent) {
+                    InstrumentedHandler.nameCurrentMessage(
+                            "WifiWakeupController: " + intent.getAction());
                     try {
                         if (WifiManager.WIFI_AP_STATE_CHANGED_ACTION.equals(intent.getAction())) {
                             handleWifiApStateChanged();
                         } else if (WifiManager.WIFI_STATE_CHANGED_ACTION.equals(
                                 intent.getAction())) {
                             handleWifiStateChanged(false);
-                        } else if (WifiManager.SCAN_RESULTS_AVAILABLE_ACTION.equals(
-                                intent.getAction())) {
-                            handleScanResultsAvailable();
                         } else if (WifiManager.CONFIGURED_NETWORKS_CHANGED_ACTION.equals(
                                 intent.getAction())) {
                             handleConfiguredNetworksChanged();
@@ -169,7 +175,6 @@ public class WifiWakeupController {
 
         IntentFilter filter = new IntentFilter();
         filter.addAction(WifiManager.WIFI_STATE_CHANGED_ACTION);
-        filter.addAction(WifiManager.SCAN_RESULTS_AVAILABLE_ACTION);
         filter.addAction(WifiManager.CONFIGURED_NETWORKS_CHANGED_ACTION);
         filter.addAction(WifiManager.WIFI_AP_STATE_CHANGED_ACTION);
         filter.addAction(PowerManager.ACTION_POWER_SAVE_MODE_CHANGED);
@@ -184,6 +189,7 @@ public class WifiWakeupController {
                 Settings.Global.getUriFor(Settings.Global.AIRPLANE_MODE_ON),
                 true,
                 mContentObserver);
+        mScanResultHub.subscribe(mScanListener);
         mContentObserver.onChange(true);
         handlePowerSaverModeChanged();
         handleUserRestrictionsChanged();
@@ -201,6 +207,7 @@ public class WifiWakeupController {
         Blog.d(TAG, "Stopping WifiWakeupController.");
         mContext.unregisterReceiver(mBroadcastReceiver);
         mContentResolver.unregisterContentObserver(mContentObserver);
+        mScanResultHub.unsubscribe(mScanListener);
     }
 
     private void handlePowerSaverModeChanged() {
@@ -263,6 +270,7 @@ public class WifiWakeupController {
             }
         }
         mSavedSsidsInLastScan.retainAll(mSavedSsids);
+        mWifiWakeupNetworkSelector.onSavedNetworksChanged();
     }
 
     private void handleWifiStateChanged(boolean calledOnStart) {
@@ -310,17 +318,16 @@ public class WifiWakeupController {
 
     private void handleScanResultsAvailable() {
         if (!mWifiWakeupEnabled || mWifiConfigRestricted) {
+            // Return before fetching, so that a disabled controller costs nothing per scan.
             return;
         }
-        List<ScanResult> scanResults = mWifiManager.getScanResults();
-        if (scanResults == null) {
-            return;
-        }
-        Blog.v(TAG, "handleScanResultsAvailable: %d", scanResults.size());
+        ScanSnapshot snapshot = mScanResultHub.getLatest();
+        Blog.v(TAG, "handleScanResultsAvailable: %d", snapshot.size());
 
         mSavedSsidsInLastScan.clear();
-        for (int i = 0; i < scanResults.size(); i++) {
-            String ssid = scanResults.get(i).SSID;
+        List<ScanRecord> records = snapshot.getRecords();
+        for (int i = 0; i < records.size(); i++) {
+            String ssid = records.get(i).ssid;
             if (mSavedSsids.contains(ssid)) {
                 mSavedSsidsInLastScan.add(ssid);
             }
@@ -360,7 +367,7 @@ public class WifiWakeupController {
         }
 
         WifiConfiguration selectedNetwork =
-                mWifiWakeupNetworkSelector.selectNetwork(mSavedNetworks, scanResults);
+                mWifiWakeupNetworkSelector.selectNetwork(mSavedNetworks, snapshot.getScanResults());
         if (selectedNetwork != null) {
             Blog.d(
                     TAG,
@@ -379,6 +386,7 @@ public class WifiWakeupController {
         pw.println("mSavedSsids: " + mSavedSsids);
         pw.println("mSavedSsidsInLastScan: " + mSavedSsidsInLastScan);
         pw.println("mSavedSsidsOnDisable: " + mSavedSsidsOnDisable);
+        mWifiWakeupNetworkSelector.dump(pw);
     }
 
     /** Class to track counts for saved networks for logging. */
@@ -21,16 +21,16 @@ import android.net.RecommendationResult;
 import android.net.wifi.ScanResult;
 import android.net.wifi.WifiConfiguration;
 import android.support.annotation.Nullable;
-import android.util.ArraySet;
 import com.android.networkrecommendation.R;
 import com.android.networkrecommendation.SynchronousNetworkRecommendationProvider;
+import com.android.networkrecommendation.scoring.ScanDeltaScorer;
 import com.android.networkrecommendation.util.RoboCompatUtil;
 import com.android.networkrecommendation.util.ScanResultUtil;
 import com.android.networkrecommendation.util.WifiConfigurationUtil;
-import java.util.ArrayList;
+import java.io.PrintWriter;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
 
 /** This class determines which network the framework would connect to if Wi-Fi was enabled. */
 public class WifiWakeupNetworkSelector {
@@ -43,6 +43,8 @@ public class WifiWakeupNetworkSelector {
     private final int mBand5GHzAward;
     private final int mThresholdSaturatedRssi24;
     private final SynchronousNetworkRecommendationProvider mNetworkRecommendationProvider;
+    private final ScanDeltaScorer mScanScorer = new ScanDeltaScorer(this::scoreScanResult);
+    private Map<String, WifiConfiguration> mSavedNetworks = Collections.emptyMap();
 
     public WifiWakeupNetworkSelector(
             Resources resources,
@@ -62,45 +64,26 @@ public class WifiWakeupNetworkSelector {
         mNetworkRecommendationProvider = networkRecommendationProvider;
     }
 
-    /** Returns the network that the framework would most likely connect to if Wi-Fi was enabled. */
+    /**
+     * Returns the network that the framework would most likely connect to if Wi-Fi was enabled.
+     *
+     * <p>Only scan results that changed since the previous call are rescored. Call {@link
+     * #onSavedNetworksChanged} whenever the contents of {@code savedNetworks} change.
+     */
     @Nullable
     public WifiConfiguration selectNetwork(
             Map<String, WifiConfiguration> savedNetworks, List<ScanResult> scanResults) {
-        Set<WifiConfiguration> openOrExternalConfigs = new ArraySet<>();
-        List<ScanResult> openOrExternalScanResults = new ArrayList<>();
-        WifiConfiguration candidateWifiConfiguration = null;
-        ScanResult candidateScanResult = null;
-        int candidateScore = -1;
-        for (int i = 0; i < scanResults.size(); i++) {
-            ScanResult scanResult = scanResults.get(i);
-            WifiConfiguration wifiConfiguration = savedNetworks.get(scanResult.SSID);
-            if (wifiConfiguration == null) {
-                continue;
-            }
-            if ((ScanResultUtil.is5GHz(scanResult) && scanResult.level < mThresholdQualifiedRssi5)
-                    || (ScanResultUtil.is24GHz(scanResult)
-                            && scanResult.level < mThresholdQualifiedRssi24)) {
-                continue;
-            }
-            if (!ScanResultUtil.doesScanResultMatchWithNetwork(scanResult, wifiConfiguration)) {
-                continue;
-            }
-            if (WifiConfigurationUtil.isConfigForOpenNetwork(wifiConfiguration)
-                    || RoboCompatUtil.getInstance().useExternalScores(wifiConfiguration)) {
-                // All open and externally scored networks should defer to network recommendations.
-                openOrExternalConfigs.add(wifiConfiguration);
-                openOrExternalScanResults.add(scanResult);
-                continue;
-            }
-            int score = calculateScore(scanResult, wifiConfiguration);
-            if (candidateScanResult == null
-                    || calculateScore(scanResult, wifiConfiguration) > candidateScore) {
-                candidateScanResult = scanResult;
-                candidateWifiConfiguration = wifiConfiguration;
-                candidateScore = score;
-            }
+        if (savedNetworks != mSavedNetworks) {
+            mSavedNetworks = savedNetworks;
+            mScanScorer.invalidate();
         }
-        if (candidateWifiConfiguration == null && !openOrExternalConfigs.isEmpty()) {
+        mScanScorer.update(scanResults);
+        ScanResult candidateScanResult = mScanScorer.getBest();
+        if (candidateScanResult != null) {
+            return savedNetworks.get(candidateScanResult.SSID);
+        }
+        List<ScanResult> openOrExternalScanResults = mScanScorer.getUnranked();
+        if (!openOrExternalScanResults.isEmpty()) {
             // TODO(netrec): Add connectableConfigs after next SystemApi drop
             RecommendationRequest request =
                     new RecommendationRequest.Builder()
@@ -110,7 +93,39 @@ public class WifiWakeupNetworkSelector {
                     mNetworkRecommendationProvider.requestRecommendation(request);
             return result.getWifiConfiguration();
         }
-        return candidateWifiConfiguration;
+        return null;
+    }
+
+    /** Must be called when the saved networks passed to {@link #selectNetwork} change. */
+    public void onSavedNetworksChanged() {
+        mScanScorer.invalidate();
+    }
+
+    public void dump(PrintWriter pw) {
+        mScanScorer.dump(pw);
+    }
+
+    /** Scores a scan result against the saved networks of the latest {@link #selectNetwork}. */
+    private int scoreScanResult(ScanResult scanResult) {
+        WifiConfiguration wifiConfiguration = mSavedNetworks.get(scanResult.SSID);
+        if (wifiConfiguration == null) {
+            return ScanDeltaScorer.EXCLUDED;
+        }
+        if ((ScanResultUtil.is5GHz(scanResult) && scanResult.level < mThresholdQualifiedRssi5)
+                || (ScanResultUtil.is24GHz(scanResult)
+                        && scanResult.level < mThresholdQualifiedRssi24)) {
+            return ScanDeltaScorer.EXCLUDED;
+        }
+        if (!ScanResultUtil.doesScanResultMatchWithNetwork(scanResult, wifiConfiguration)) {
+            return ScanDeltaScorer.EXCLUDED;
+        }
+        if (WifiConfigurationUtil.isConfigForOpenNetwork(wifiConfiguration)
+                || RoboCompatUtil.getInstance().useExternalScores(wifiConfiguration)) {
+            // All open and externally scored networks should defer to network recommendations.
+            return ScanDeltaScorer.UNRANKED;
+        }
+        int score = calculateScore(scanResult, wifiConfiguration);
+        return Math.max(score, ScanDeltaScorer.UNRANKED + 1);
     }
 
     private int calculateScore(ScanResult scanResult, WifiConfiguration wifiConfiguration) {